@@ -3,26 +3,94 @@ import static java.lang.System.Logger.Level.ERROR;
 import static java.lang.System.Logger.Level.INFO;
 import static java.lang.System.Logger.Level.WARNING;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.module.ModuleFinder;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 import java.util.regex.Pattern;
 import java.util.spi.ToolProvider;
 import java.util.stream.Collectors;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
 
 /** Modular project model and maker. */
 class Make implements ToolProvider {
@@ -33,9 +101,24 @@ class Make implements ToolProvider {
   /** Convenient short-cut to {@code "user.dir"} as a path. */
   static final Path USER_PATH = Path.of(System.getProperty("user.dir"));
 
+  /** Options of JVMs launching the JUnit Platform. */
+  static final List<String> JUNIT_OPTIONS =
+      List.of(
+          // "--show-version",
+          // "--show-module-resolution",
+          "--illegal-access=debug",
+          "-Dsun.reflect.debugModuleAccessChecks",
+          "--add-opens",
+          "org.junit.jupiter.api/org.junit.jupiter.api.condition=org.junit.platform.commons");
+
   /** Main entry-point. */
   public static void main(String... args) {
-    var code = Make.of(USER_PATH).run(System.out, System.err, args);
+    var daemon = System.getProperty("daemon", "false");
+    var code =
+        daemon.equals("true")
+            ? Daemon.serve(USER_PATH)
+            : Daemon.send(USER_PATH, daemon.equals("stop") ? null : args)
+                .orElseGet(() -> Make.of(USER_PATH).run(System.out, System.err, args));
     if (code != 0) {
       throw new Error("Make.java failed with error code: " + code);
     }
@@ -43,20 +126,41 @@ class Make implements ToolProvider {
 
   /** Create instance using the given path as the home of project. */
   static Make of(Path home) {
+    var tree = index(home);
+    return of(home, realms(home, tree), tree);
+  }
+
+  /** Create instance using the given path as the home of project and already resolved realms. */
+  static Make of(Path home, List<Realm> realms, Tree tree) {
     var debug = Boolean.getBoolean("ebug");
     var dryRun = Boolean.getBoolean("ry-run");
     var project = System.getProperty("project.name", home.getFileName().toString());
     var version = System.getProperty("project.version", "1.0.0-SNAPSHOT");
+    return new Make(debug, dryRun, project, version, home, realms, tree);
+  }
+
+  /** Walk source and library trees of the project located at the given home path. */
+  static Tree index(Path home) {
+    return Tree.of(home.resolve("src"), home.resolve("lib"));
+  }
+
+  /** Resolve realms of the project located at the given home path. */
+  static List<Realm> realms(Path home, Tree tree) {
     var work = home.resolve("work");
-    var main = Realm.of("main", home, work);
+    var main = Realm.of("main", tree, home, work);
     var realms = new ArrayList<Realm>();
     realms.add(main);
     try {
-      realms.add(Realm.of("test", home, work, main));
+      realms.add(Realm.of("test", tree, home, work, main));
     } catch (Error e) {
       // ignore missing test realm...
     }
-    return new Make(debug, dryRun, project, version, home, realms);
+    try {
+      realms.add(Realm.of("bench", tree, home, work, main));
+    } catch (Error e) {
+      // ignore missing bench realm...
+    }
+    return realms;
   }
 
   /** Debug flag. */
@@ -71,6 +175,8 @@ class Make implements ToolProvider {
   final Path home;
   /** Realms of this project. */
   final List<Realm> realms;
+  /** Index of source and library trees of this project. */
+  final Tree tree;
 
   Make(
       boolean debug,
@@ -78,13 +184,15 @@ class Make implements ToolProvider {
       String project,
       String version,
       Path home,
-      List<Realm> realms) {
+      List<Realm> realms,
+      Tree tree) {
     this.debug = debug;
     this.dryRun = dryRun;
     this.project = project;
     this.version = version;
     this.home = home.normalize().toAbsolutePath();
     this.realms = realms;
+    this.tree = tree;
   }
 
   @Override
@@ -95,7 +203,133 @@ class Make implements ToolProvider {
   @Override
   public int run(PrintWriter out, PrintWriter err, String... args) {
     var run = new Run(debug ? System.Logger.Level.ALL : System.Logger.Level.INFO, out, err);
-    return run(run, args);
+    run.sink.file(realms.get(0).target.resolve("log.jsonl"));
+    try {
+      var code = run(run, args);
+      if (List.of(args).contains("--watch")) {
+        watch(run);
+      }
+      return code;
+    } finally {
+      run.javac.close();
+      run.sink.close();
+    }
+  }
+
+  /** Watch sources and libraries, rebuild and test affected realms until the output breaks. */
+  private void watch(Run run) {
+    var delay = Integer.getInteger("watch.delay", 100);
+    try (var service = home.getFileSystem().newWatchService()) {
+      register(service, home.resolve("lib"));
+      for (var realm : realms) {
+        register(service, home.resolve(realm.source));
+      }
+      run.log(INFO, "Watching for changes...");
+      run.flush();
+      while (!run.out.checkError()) { // a daemon client may have gone away
+        var key = service.poll(1, TimeUnit.SECONDS);
+        if (key == null) {
+          continue;
+        }
+        Thread.sleep(delay); // let editors and tools finish writing
+        var changes = new TreeSet<Path>();
+        for (; key != null; key = service.poll()) {
+          var directory = (Path) key.watchable();
+          for (var event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              changes.add(directory);
+              continue;
+            }
+            var path = directory.resolve((Path) event.context());
+            var name = path.getFileName().toString();
+            if (name.endsWith(".part") || name.endsWith(".etag")) {
+              continue; // written by downloads of this process, see Util.download()
+            }
+            changes.add(path);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+              register(service, path);
+            }
+          }
+          key.reset();
+        }
+        run.log(DEBUG, "Changed: %s", changes);
+        of(home).rebuild(run, changes); // re-index trees and re-resolve realms
+        run.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new Error("Watching failed: " + e, e);
+    }
+  }
+
+  /** Register the given directory and all of its subdirectories with the watch service. */
+  private static void register(WatchService service, Path root) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    try (var stream = Files.walk(root)) {
+      for (var directory : stream.filter(Files::isDirectory).collect(Collectors.toList())) {
+        directory.register(
+            service,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+      }
+    }
+  }
+
+  /** Return {@code true} if the given path denotes a library jar or a list of modules to load. */
+  private boolean isLibraryChange(Path path) {
+    var name = path.getFileName().toString();
+    return path.startsWith(home.resolve("lib"))
+        && (name.equals("module-uri.properties") || name.endsWith(".jar"));
+  }
+
+  /** Rebuild realms affected by the given changed paths and rerun their tests. */
+  private void rebuild(Run run, Set<Path> changes) {
+    var affected = new ArrayList<Realm>();
+    for (var realm : realms) {
+      if (realm.containsBenchmarks()) {
+        continue; // built and run on demand, see bench(Run)
+      }
+      var inputs = new ArrayList<Path>();
+      inputs.add(home.resolve(realm.source));
+      inputs.addAll(realm.modulePaths.get("compile"));
+      inputs.addAll(realm.modulePaths.get("runtime"));
+      var required = affected.stream().map(other -> other.packagedModules);
+      if (required.anyMatch(inputs::contains)
+          || changes.stream().anyMatch(path -> inputs.stream().anyMatch(path::startsWith))) {
+        affected.add(realm);
+      }
+    }
+    if (affected.isEmpty()) {
+      return;
+    }
+    var start = System.nanoTime();
+    var libraries = changes.stream().anyMatch(this::isLibraryChange);
+    run.log(INFO, "Rebuilding %s...", affected);
+    run.javac.close(); // drop file managers holding archives packaged by the previous cycle
+    try {
+      for (var realm : affected) {
+        if (libraries) {
+          run.phase("assemble", realm.name, () -> assemble(run, realm));
+        }
+        // modules with unchanged inputs are skipped
+        run.phase("build", realm.name, () -> build(run, realm));
+      }
+      for (var realm : affected) {
+        if (realm.containsTests()) {
+          run.phase("junit", realm.name, () -> junit(run, realm));
+        }
+      }
+      var millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      run.log(INFO, "Rebuild successful after %d ms.", millis);
+    } catch (Throwable throwable) {
+      run.log(ERROR, "Rebuild failed: %s", throwable.getMessage());
+      run.flush();
+      throwable.printStackTrace(run.err);
+    }
   }
 
   int run(Run run, String... args) {
@@ -111,24 +345,65 @@ class Make implements ToolProvider {
       run.log(INFO, "Dry-run ends here.");
       return 0;
     }
+    var main = realms.get(0);
+    // documentation only needs the main realm, it runs while other realms are built and tested
+    var executor = Executors.newSingleThreadExecutor();
+    var documentation = new ArrayList<CompletableFuture<Void>>();
     try {
-      build(run); // compile + jar
+      run.tools.validate("javac", "javadoc");
+      build(
+          run,
+          realm -> {
+            if (realm == main) {
+              documentation.add(CompletableFuture.runAsync(() -> document(run), executor));
+            }
+          }); // compile + jar
       junit(run); // test
-      var main = realms.get(0);
-      document(run, main); // javadoc + x
-      summary(run, main);
+      bench(run); // benchmark
+      documentation.forEach(Util::join);
+      run.log(INFO, "Tools");
+      run.tools.toStrings().forEach(line -> run.log(INFO, line));
       run.log(INFO, "Build successful after %d ms.", run.toDurationMillis());
       return 0;
     } catch (Throwable throwable) {
+      for (var future : documentation) {
+        try {
+          Util.join(future); // don't let it write to a failed run
+        } catch (Throwable suppressed) {
+          if (suppressed != throwable) {
+            throwable.addSuppressed(suppressed);
+          }
+        }
+      }
       run.log(ERROR, "Build failed: %s", throwable.getMessage());
+      run.flush();
       throwable.printStackTrace(run.err);
       return 1;
+    } finally {
+      executor.shutdown();
+      var trace = main.target.resolve("trace.json");
+      run.trace(trace);
+      run.log(DEBUG, "Trace written to %s", trace.toUri());
+    }
+  }
+
+  /** Document and summarize the main realm. */
+  private void document(Run run) {
+    var main = realms.get(0);
+    try {
+      run.phase("document", main.name, () -> document(run, main)); // javadoc + x
+      run.phase("summary", main.name, () -> summary(run, main));
+    } catch (Exception e) {
+      throw new Error("Documenting " + main.name + " realm failed: " + e, e);
     }
   }
 
-  /** Sequentially build all realms. */
-  private void build(Run run) throws Exception {
+  /** Build all realms in order, each realm may require modules of its predecessors. */
+  private void build(Run run, Consumer<Realm> built) throws Exception {
     for (var realm : realms) {
+      if (realm.containsBenchmarks()) {
+        continue; // built and run on demand, see bench(Run)
+      }
       var moduleSourcePath = home.resolve(realm.source);
       if (Files.notExists(moduleSourcePath)) {
         run.log(WARNING, "Source path of %s realm not found: %s", realm.name, moduleSourcePath);
@@ -137,8 +412,9 @@ class Make implements ToolProvider {
       if (realm.modules.isEmpty()) {
         throw new Error("No modules found in source path: " + moduleSourcePath);
       }
-      assemble(run, realm);
-      build(run, realm);
+      run.phase("assemble", realm.name, () -> assemble(run, realm));
+      run.phase("build", realm.name, () -> build(run, realm));
+      built.accept(realm);
     }
   }
 
@@ -146,95 +422,649 @@ class Make implements ToolProvider {
   private void assemble(Run run, Realm realm) throws Exception {
     run.log(DEBUG, "Assembling assets for %s realm...", realm.name);
     var offline = Boolean.getBoolean("offline");
+    var store = Store.of();
     var libraries = home.resolve(realm.libraries);
     var candidates =
         List.of(
             libraries.resolve(realm.name),
             libraries.resolve(realm.name + "-compile-only"),
             libraries.resolve(realm.name + "-runtime-only"));
-    var downloaded = new ArrayList<Path>();
+    var downloads = new ArrayList<Callable<Path>>();
     for (var candidate : candidates) {
-      if (!Files.isDirectory(candidate)) {
+      if (!tree.isDirectory(candidate)) {
         continue;
       }
-      for (var path : Util.listFiles(candidate, name -> name.equals("module-uri.properties"))) {
+      for (var path : tree.listFiles(candidate, Util.named("module-uri.properties"))) {
         var directory = path.getParent();
         var properties = new Properties();
         try (var stream = Files.newInputStream(path)) {
           properties.load(stream);
-          run.log(DEBUG, "Resolving %d modules in %s", properties.size(), directory.toUri());
-          for (var value : properties.values()) {
-            var string = value.toString();
-            var uri = URI.create(string);
-            uri = uri.isAbsolute() ? uri : home.resolve(string).toUri();
-            run.log(DEBUG, " o %s", uri);
-            downloaded.add(Util.download(offline, directory, uri));
-          }
+        }
+        run.log(DEBUG, "Resolving %d modules in %s", properties.size(), directory.toUri());
+        for (var value : properties.values()) {
+          var string = value.toString();
+          var uri = URI.create(string);
+          var absolute = uri.isAbsolute() ? uri : home.resolve(string).toUri();
+          run.log(DEBUG, " o %s", absolute);
+          downloads.add(
+              () -> {
+                try (var span = run.span("download", "download", "uri", absolute)) {
+                  store.restore(absolute, directory);
+                  var file = store.put(absolute, Util.download(offline, directory, absolute));
+                  span.attributes.put("file", file.getFileName());
+                  return file;
+                }
+              });
+        }
+      }
+    }
+    if (downloads.isEmpty()) {
+      run.log(DEBUG, "No modules to download for %s realm.", realm.name);
+      return;
+    }
+    var maximum = Math.max(1, Integer.getInteger("parallel-downloads", 8)); // 0 = sequential
+    var parallelism = Math.min(downloads.size(), maximum);
+    var executor = Executors.newFixedThreadPool(parallelism);
+    var downloaded = new ArrayList<Path>();
+    var failures = new ArrayList<Throwable>();
+    try {
+      for (var future : executor.invokeAll(downloads)) {
+        try {
+          downloaded.add(future.get());
+        } catch (ExecutionException e) {
+          failures.add(e.getCause());
         }
       }
+    } finally {
+      executor.shutdownNow();
+    }
+    if (!failures.isEmpty()) {
+      var error = new Error(failures.size() + " of " + downloads.size() + " downloads failed");
+      failures.forEach(failure -> run.log(ERROR, "  %s", failure));
+      failures.forEach(error::addSuppressed);
+      throw error;
     }
-    run.log(DEBUG, "Downloaded %d modules.", downloaded.size());
+    candidates.forEach(tree::refresh); // pick up downloaded modules
+    run.log(DEBUG, "Downloaded %d modules using %d threads.", downloaded.size(), parallelism);
     run.log(DEBUG, "Assembled assets for %s realm.", realm.name);
   }
 
-  /** Build given realm. */
+  /** Build given realm, independent modules are built concurrently. */
   private void build(Run run, Realm realm) {
-    var pendingModules = new ArrayList<>(realm.modules);
-    var builders = List.of(new MultiReleaseBuilder(run, realm), new DefaultBuilder(run, realm));
-    for (var builder : builders) {
-      var builtModules = builder.build(pendingModules);
-      pendingModules.removeAll(builtModules);
-      if (pendingModules.isEmpty()) {
+    var moduleSourcePath = home.resolve(realm.source);
+    var graph = new HashMap<String, Set<String>>();
+    for (var module : realm.modules) {
+      var info = ModuleInfo.of(tree, moduleSourcePath.resolve(module));
+      var requires = new LinkedHashSet<>(info.requires);
+      requires.retainAll(realm.modules);
+      graph.put(module, requires);
+    }
+    var processors = Runtime.getRuntime().availableProcessors();
+    var parallelism = Math.max(1, Integer.getInteger("parallelism", processors)); // 0 = sequential
+    var executor = new ForkJoinPool(parallelism);
+    var defaultBuilder = new DefaultBuilder(run, realm);
+    List<ModuleBuilder> builders =
+        List.of(new MultiReleaseBuilder(run, realm, executor), defaultBuilder);
+    var cache = new BuildCache(run, realm, defaultBuilder);
+    run.log(DEBUG, "Building %s realm with parallelism of %d...", realm.name, parallelism);
+    try {
+      var futures = new HashMap<String, CompletableFuture<Void>>();
+      for (var module : Util.sortTopologically(graph)) {
+        var dependencies = graph.get(module).stream().map(futures::get);
+        var task =
+            CompletableFuture.allOf(dependencies.toArray(CompletableFuture[]::new))
+                .thenRunAsync(() -> build(run, realm, builders, cache, module), executor);
+        futures.put(module, task);
+      }
+      Util.join(CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new)));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Build single module using the first builder that accepts it. */
+  private void build(
+      Run run, Realm realm, List<ModuleBuilder> builders, BuildCache cache, String module) {
+    try (var span = run.span(module, "module", "realm", realm.name, "module", module)) {
+      var key = cache.key(module);
+      if (cache.isUpToDate(module, key)) {
+        span.attributes.put("cache", "up-to-date");
+        return;
+      }
+      if (cache.restore(module, key)) {
+        span.attributes.put("cache", "restored");
         return;
       }
+      for (var builder : builders) {
+        if (builder.build(List.of(module)).contains(module)) {
+          span.attributes.put("builder", builder.getClass().getSimpleName());
+          cache.store(module, key);
+          return;
+        }
+      }
+    }
+    throw new IllegalStateException("No builder accepted module: " + module);
+  }
+
+  /** Run benchmarks of all realms that signal to contain benchmarks, if enabled. */
+  private void bench(Run run) throws Exception {
+    if (!Boolean.getBoolean("bench")) {
+      return;
+    }
+    for (var realm : realms) {
+      if (realm.containsBenchmarks()) {
+        run.phase("assemble", realm.name, () -> assemble(run, realm));
+        run.phase("bench", realm.name, () -> bench(run, realm));
+      }
     }
-    throw new IllegalStateException("Pending module list is not empty! " + pendingModules);
   }
 
   /** Launch JUnit Platform for all realms that signal to contain tests. */
   private void junit(Run run) throws Exception {
     for (var realm : realms) {
       if (realm.containsTests()) {
-        junit(run, realm);
+        run.phase("junit", realm.name, () -> junit(run, realm));
       }
     }
   }
 
-  /** Launch JUnit Platform for given realm. */
+  /** Launch JUnit Platform for test modules of given realm affected since their last run. */
   private void junit(Run run, Realm realm) throws Exception {
+    var fingerprints = Fingerprints.load(realm.fingerprints.resolve("junit.properties"));
+    var digests = impactDigests(realm);
+    var modules = new ArrayList<String>();
+    for (var module : realm.modules) {
+      if (Boolean.getBoolean("junit.all") || !fingerprints.matches(module, digests.get(module))) {
+        modules.add(module);
+      }
+    }
+    if (modules.isEmpty()) {
+      run.log(INFO, "JUnit: no test module of %s realm is affected by changes.", realm.name);
+      return;
+    }
+    junit(run, realm, modules);
+    modules.forEach(module -> fingerprints.put(module, digests.get(module)));
+    fingerprints.store();
+  }
+
+  /** Compute digests of test modules covering the sources of all modules they read. */
+  private Map<String, String> impactDigests(Realm realm) {
+    var runtime = realm.modulePaths.get("runtime");
+    var sources = new HashMap<String, Path>();
+    var libraries = new ArrayList<>(runtime);
+    for (var required : realms) {
+      if (runtime.contains(required.packagedModules)) {
+        libraries.remove(required.packagedModules); // covered by module sources below
+        required.modules.forEach(m -> sources.put(m, home.resolve(required.source).resolve(m)));
+      }
+    }
+    realm.modules.forEach(m -> sources.put(m, home.resolve(realm.source).resolve(m)));
+    var inputs = new Digest().withTrees(tree, libraries);
+    // how tests are launched, a different launch configuration affects all test modules
+    inputs.with(Runtime.version()).withEach(JUNIT_OPTIONS);
+    for (var name : new TreeSet<>(System.getProperties().stringPropertyNames())) {
+      if (name.startsWith("junit.") && !name.equals("junit.all")) {
+        inputs.with(name).with(System.getProperty(name));
+      }
+    }
+    var digests = new HashMap<String, String>();
+    for (var module : realm.modules) {
+      var closure = new TreeSet<String>();
+      var pending = new ArrayDeque<>(List.of(module));
+      while (!pending.isEmpty()) {
+        var name = pending.pop();
+        if (sources.containsKey(name) && closure.add(name)) {
+          pending.addAll(ModuleInfo.of(tree, sources.get(name)).requires);
+        }
+      }
+      var digest = new Digest().with(inputs.toString());
+      closure.forEach(name -> digest.with(name).withTree(tree, sources.get(name)));
+      digests.put(module, digest.toString());
+    }
+    return digests;
+  }
+
+  /** Launch JUnit Platform for the given test modules of the realm. */
+  private void junit(Run run, Realm realm, List<String> modules) throws Exception {
     var modulePath = new ArrayList<Path>();
     modulePath.add(realm.compiledModules); // grab test modules
     modulePath.addAll(realm.modulePaths.get("runtime"));
+    if (Boolean.getBoolean("junit.in-process")) {
+      junitInProcess(run, realm, modules, modulePath);
+      return;
+    }
+    var launcher = Boolean.getBoolean("junit.jlink") ? image(run, realm) : Util.java();
     var java =
         new Args()
-            // .with("--show-version")
+            .with(launcher)
             .with("--module-path", modulePath)
-            // .with("--show-module-resolution")
-            .with("--illegal-access=debug")
-            .with("-Dsun.reflect.debugModuleAccessChecks")
-            .with(
-                "--add-opens",
-                "org.junit.jupiter.api/org.junit.jupiter.api.condition=org.junit.platform.commons")
+            .withEach(JUNIT_OPTIONS)
             .with("--add-modules", String.join(",", realm.modules));
+    var cds = System.getProperty("junit.cds", "true").equals("true");
+    if (cds && Runtime.version().feature() >= 13) { // dynamic archives need JDK 13 or later
+      classDataSharing(run, realm, launcher).ifPresent(java::with);
+    }
+    var modes = List.of(System.getProperty("junit.modes", "module-path").split(","));
+    if (!modes.equals(List.of("module-path"))) {
+      junitModes(run, realm, modules, java, modes);
+      return;
+    }
+    var shards = Integer.getInteger("junit.shards", 1);
+    if (shards > 1) {
+      junitShards(run, realm, modules, java, shards);
+      return;
+    }
     var junit =
         new Args()
             .with("--fail-if-no-tests")
-            .with("--reports-dir", realm.target.resolve("junit-reports"))
-            .with("--scan-modules");
-    // TODO Starting JUnit Platform Console in an external process for now...
-    var program = ProcessHandle.current().info().command().map(Path::of).orElseThrow();
-    var command = new Args().with(program.resolveSibling("java"));
-    command.addAll(java);
+            .with("--reports-dir", realm.target.resolve("junit-reports"));
+    modules.forEach(module -> junit.with("--select-module", module));
+    var command = new Args().withEach(java);
     command.with("--module", "org.junit.platform.console").withEach(junit);
     run.log(INFO, "JUnit: %s", command);
-    run.out.flush();
-    var process = new ProcessBuilder(command.toStringArray()).inheritIO().start();
-    var code = process.waitFor();
+    var code = fork(run, command);
     if (code != 0) {
       throw new AssertionError("JUnit run exited with code " + code);
     }
   }
 
+  /** Return java launcher of a minimal runtime image for testing given realm, link it if needed. */
+  private Path image(Run run, Realm realm) throws Exception {
+    var modulePath = new ArrayList<Path>();
+    modulePath.add(realm.compiledModules);
+    modulePath.addAll(realm.modulePaths.get("runtime"));
+    var system = ModuleFinder.ofSystem().findAll();
+    var modules = new TreeSet<String>();
+    var services = new TreeSet<String>(); // used by application and resolved system modules
+    modules.add("java.base");
+    for (var reference : ModuleFinder.of(modulePath.toArray(Path[]::new)).findAll()) {
+      var descriptor = reference.descriptor();
+      descriptor.requires().forEach(requires -> modules.add(requires.name()));
+      services.addAll(descriptor.uses());
+    }
+    modules.removeIf(name -> system.stream().noneMatch(r -> r.descriptor().name().equals(name)));
+    // close over requires and bind providers, services used by "java.base" are not bound as
+    // that would link almost every system module, like "jdk.compiler" for its tool providers
+    for (var changed = true; changed; ) {
+      changed = false;
+      for (var reference : system) {
+        var descriptor = reference.descriptor();
+        if (modules.contains(descriptor.name())) {
+          for (var requires : descriptor.requires()) {
+            changed |= modules.add(requires.name());
+          }
+          if (!descriptor.name().equals("java.base")) {
+            changed |= services.addAll(descriptor.uses()); // like "java.scripting" engines
+          }
+          continue;
+        }
+        if (descriptor.provides().stream().anyMatch(p -> services.contains(p.service()))) {
+          changed |= modules.add(descriptor.name());
+        }
+      }
+    }
+    var image = realm.runtime.resolve("image");
+    var java = image.resolve("bin").resolve(Util.java().getFileName());
+    var fingerprints = Fingerprints.load(realm.fingerprints.resolve("jlink.properties"));
+    var digest = new Digest().with(Runtime.version()).withEach(modules).toString();
+    if (fingerprints.matches("image", digest) && Files.isExecutable(java)) {
+      run.log(DEBUG, "Runtime image is up-to-date: %s", image);
+      return java;
+    }
+    run.log(INFO, "Linking runtime image with %d modules: %s", modules.size(), modules);
+    Util.deleteTree(image);
+    var jlink =
+        new Args()
+            .with("--output", image)
+            .with("--add-modules", String.join(",", modules))
+            .with("--no-header-files")
+            .with("--no-man-pages");
+    run.tool("jlink", jlink.toStringArray());
+    // an image has no default class data sharing archive, dynamic archives are based on it
+    var output = new StringWriter();
+    if (fork(new Args().with(java).with("-Xshare:dump"), output) != 0) {
+      run.log(WARNING, "Dumping default class data sharing archive failed: %s", output);
+    }
+    fingerprints.put("image", digest);
+    fingerprints.store();
+    return java;
+  }
+
+  /** Return option mapping a dynamic AppCDS archive of the JUnit Platform, dump it if missing. */
+  private Optional<String> classDataSharing(Run run, Realm realm, Path launcher)
+      throws Exception {
+    var modulePath = realm.modulePaths.get("runtime");
+    var key = new Digest().with(Runtime.version()).with(launcher);
+    key.with(Files.getLastModifiedTime(launcher)); // a linked image is a new launcher
+    for (var path : modulePath) {
+      var jars = tree.listFiles(path, file -> file.toString().endsWith(".jar"));
+      jars.sort(null);
+      for (var jar : jars) {
+        var attributes = tree.attributes(jar); // the JVM validates jars by size and time
+        key.with(jar).with(attributes.size()).with(attributes.lastModifiedTime());
+      }
+    }
+    var archive = realm.runtime.resolve("junit-" + key + ".jsa");
+    if (Files.exists(archive)) {
+      return Optional.of("-XX:SharedArchiveFile=" + archive);
+    }
+    // exploded test modules can't be archived, dump while running the platform without them
+    var dump = Files.createDirectories(realm.runtime).resolve(archive.getFileName() + ".dump");
+    var command =
+        new Args()
+            .with(launcher)
+            .with("-XX:ArchiveClassesAtExit=" + dump)
+            .with("--module-path", modulePath)
+            .with("--add-modules", "ALL-MODULE-PATH")
+            .with("--module", "org.junit.platform.console")
+            .with("--disable-banner")
+            .with("--scan-modules");
+    run.log(DEBUG, "Dumping class data sharing archive: %s", command);
+    try (var span = run.span("cds", "junit", "archive", archive.getFileName())) {
+      var code = fork(command, new StringWriter()); // exits with 1 as no tests are found
+      span.attributes.put("code", code);
+    }
+    if (Files.notExists(dump)) {
+      run.log(WARNING, "Dumping class data sharing archive failed, see: %s", command);
+      return Optional.empty();
+    }
+    for (var stale : Util.listFiles(realm.runtime, name -> name.matches("junit-.+\\.jsa"))) {
+      Files.delete(stale);
+    }
+    Files.move(dump, archive);
+    return Optional.of("-XX:SharedArchiveFile=" + archive);
+  }
+
+  /** Run test classes of given modules in concurrent JVMs, balanced by recorded durations. */
+  private void junitShards(Run run, Realm realm, List<String> modules, Args java, int count)
+      throws Exception {
+    var reports = realm.target.resolve("junit-reports");
+    var durations = TestReport.durations(TestReport.parse(reports));
+    var classes = new ArrayList<String>();
+    for (var module : modules) {
+      classes.addAll(TestReport.findTestClasses(realm.compiledModules.resolve(module)));
+    }
+    if (classes.isEmpty()) {
+      throw new AssertionError("JUnit run found no test classes in " + modules);
+    }
+    var shards = TestReport.balance(classes, durations, count);
+    run.log(INFO, "JUnit: %d test classes in %d shards", classes.size(), shards.size());
+    if (Files.isDirectory(reports)) {
+      for (var report : Util.listFiles(reports, name -> name.startsWith("TEST-"))) {
+        Files.delete(report); // stale reports of previous runs, they were read above
+      }
+    }
+    var commands = new LinkedHashMap<String, Args>();
+    for (int i = 0; i < shards.size(); i++) {
+      var command = new Args().withEach(java);
+      command.with("--module", "org.junit.platform.console");
+      command.with("--fail-if-no-tests");
+      command.with("--reports-dir", reports.resolve("shard-" + i));
+      shards.get(i).forEach(name -> command.with("--select-class", name));
+      commands.put("shard-" + i, command);
+    }
+    var failures = forkAll(run, commands);
+    for (int i = 0; i < shards.size(); i++) {
+      var directory = reports.resolve("shard-" + i);
+      if (!Files.isDirectory(directory)) {
+        continue; // shard crashed before writing reports, its exit code is reported below
+      }
+      for (var report : Util.listFiles(directory, name -> name.endsWith(".xml"))) {
+        var name = report.getFileName().toString().replace(".xml", "-shard-" + i + ".xml");
+        Files.move(report, reports.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+      }
+      Files.deleteIfExists(directory);
+    }
+    run.flush();
+    if (!failures.isEmpty()) {
+      throw new AssertionError("JUnit run failed: " + String.join(", ", failures));
+    }
+  }
+
+  /** Run test modules in each launch mode concurrently and report outcomes per test and mode. */
+  private void junitModes(
+      Run run, Realm realm, List<String> modules, Args java, List<String> modes)
+      throws Exception {
+    var reports = realm.target.resolve("junit-reports");
+    var commands = new LinkedHashMap<String, Args>();
+    for (var mode : modes) {
+      var command = new Args();
+      if (mode.equals("module-path")) {
+        command.withEach(java);
+        command.with("--module", "org.junit.platform.console");
+        command.with("--fail-if-no-tests");
+        command.with("--reports-dir", reports.resolve(mode));
+        modules.forEach(module -> command.with("--select-module", module));
+      } else if (mode.equals("class-path")) {
+        // same compiled test modules, their module descriptors are ignored on the class path
+        var roots = new ArrayList<Path>();
+        modules.forEach(module -> roots.add(realm.compiledModules.resolve(module)));
+        var classPath = new ArrayList<Path>();
+        realm.modules.forEach(module -> classPath.add(realm.compiledModules.resolve(module)));
+        for (var path : realm.modulePaths.get("runtime")) {
+          classPath.addAll(tree.listFiles(path, file -> file.toString().endsWith(".jar")));
+        }
+        command.with(java.get(0)).with("--class-path", classPath);
+        command.with("org.junit.platform.console.ConsoleLauncher");
+        command.with("--fail-if-no-tests");
+        command.with("--reports-dir", reports.resolve(mode));
+        command.with("--scan-class-path", roots);
+      } else {
+        throw new Error("Unknown JUnit launch mode: " + mode);
+      }
+      commands.put(mode, command);
+    }
+    var failures = forkAll(run, commands);
+    var results = new TreeMap<String, Map<String, TestReport>>();
+    for (var mode : modes) {
+      for (var report : TestReport.parse(reports.resolve(mode))) {
+        var test = report.className + '#' + report.name;
+        results.computeIfAbsent(test, key -> new TreeMap<>()).put(mode, report);
+      }
+    }
+    var lines = new ArrayList<String>();
+    for (var entry : results.entrySet()) {
+      var line = new StringBuilder(entry.getKey());
+      for (var mode : modes) {
+        var report = entry.getValue().get(mode);
+        if (report == null) {
+          line.append(" | ").append(mode).append(" ABSENT");
+          continue;
+        }
+        line.append(String.format(" | %s %s %.3f s", mode, report.outcome, report.time));
+      }
+      lines.add(line.toString());
+    }
+    Files.write(reports.resolve("junit-modes.txt"), lines);
+    run.log(INFO, "JUnit results per launch mode: %s", modes);
+    lines.forEach(line -> run.log(INFO, "  %s", line));
+    if (!failures.isEmpty()) {
+      throw new AssertionError("JUnit run failed: " + String.join(", ", failures));
+    }
+  }
+
+  /** Fork all named commands concurrently, print their outputs in order, return failures. */
+  private List<String> forkAll(Run run, Map<String, Args> commands) throws Exception {
+    var forks = new ArrayList<Callable<Integer>>();
+    var outputs = new ArrayList<StringWriter>();
+    for (var entry : commands.entrySet()) {
+      var name = entry.getKey();
+      var command = entry.getValue();
+      run.log(DEBUG, "JUnit %s: %s", name, command);
+      var output = new StringWriter();
+      outputs.add(output);
+      forks.add(
+          () -> {
+            try (var span = run.span(name, "junit")) {
+              var code = fork(command, output);
+              span.attributes.put("code", code);
+              return code;
+            }
+          });
+    }
+    var names = List.copyOf(commands.keySet());
+    var executor = Executors.newFixedThreadPool(forks.size());
+    var failures = new ArrayList<String>();
+    try {
+      var futures = executor.invokeAll(forks);
+      for (int i = 0; i < futures.size(); i++) {
+        run.log(INFO, "JUnit %s:", names.get(i));
+        run.flush();
+        run.out.print(outputs.get(i)); // sequentially, each output in one piece
+        var code = futures.get(i).get();
+        if (code != 0) {
+          failures.add(names.get(i) + " exited with code " + code);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    run.flush();
+    return failures;
+  }
+
+  /** Start process for the given command, pipe its output to the run and wait for its exit. */
+  private int fork(Run run, Args command) throws Exception {
+    run.flush();
+    var code = fork(command, run.out); // "run.out" may be connected to a daemon client
+    run.flush();
+    return code;
+  }
+
+  /** Start process for the given command, pipe its output to the writer and wait for its exit. */
+  private static int fork(Args command, Writer writer) throws Exception {
+    var process = new ProcessBuilder(command.toStringArray()).redirectErrorStream(true).start();
+    try (var output = new InputStreamReader(process.getInputStream())) {
+      output.transferTo(writer);
+    }
+    return process.waitFor();
+  }
+
+  /** Compile and run JMH benchmarks of given realm on the class path. */
+  private void bench(Run run, Realm realm) throws Exception {
+    // Make.java lives in the unnamed package, benchmarks can't be modular
+    var classPath = new ArrayList<Path>();
+    for (var path : realm.modulePaths.get("runtime")) {
+      classPath.addAll(tree.listFiles(path, file -> file.toString().endsWith(".jar")));
+    }
+    var sources = new ArrayList<Path>();
+    var make = home.resolve("Make.java");
+    if (Files.exists(make)) {
+      sources.add(make);
+    }
+    sources.addAll(tree.listJavaFiles(home.resolve(realm.source)));
+    var classes = realm.compiledBase.resolve("classes");
+    var javac =
+        new Args()
+            .with("-encoding", "UTF-8")
+            .with("-d", classes)
+            .with("--class-path", classPath)
+            .withEach(sources);
+    run.tool("javac", javac.toStringArray());
+    classPath.add(0, classes);
+    var result = Files.createDirectories(realm.target.resolve(realm.name)).resolve("jmh.json");
+    var command =
+        new Args()
+            .with(Util.java())
+            .with("--class-path", classPath)
+            .with("org.openjdk.jmh.Main")
+            .with("-rf", "json")
+            .with("-rff", result);
+    var extra = System.getProperty("bench.args", "").strip();
+    if (!extra.isEmpty()) {
+      command.withEach(List.of(extra.split("\\s+")));
+    }
+    run.log(INFO, "JMH: %s", command);
+    var code = fork(run, command);
+    if (code != 0) {
+      throw new AssertionError("JMH run exited with code " + code);
+    }
+    run.log(INFO, "Benchmark results written to %s", result.toUri());
+  }
+
+  /** Launch JUnit Platform for given realm in a module layer of the current process. */
+  private void junitInProcess(Run run, Realm realm, List<String> modules, List<Path> modulePath)
+      throws Exception {
+    var finder = ModuleFinder.of(modulePath.toArray(Path[]::new));
+    var roots = new ArrayList<>(realm.modules);
+    roots.add("org.junit.platform.launcher");
+    roots.add("org.junit.platform.reporting");
+    var boot = ModuleLayer.boot();
+    var configuration = boot.configuration().resolveAndBind(finder, ModuleFinder.of(), roots);
+    var parentLoader = ClassLoader.getPlatformClassLoader();
+    var controller =
+        ModuleLayer.defineModulesWithOneLoader(configuration, List.of(boot), parentLoader);
+    var layer = controller.layer();
+    // --add-opens org.junit.jupiter.api/org.junit.jupiter.api.condition=org.junit.platform.commons
+    var api = layer.findModule("org.junit.jupiter.api");
+    var commons = layer.findModule("org.junit.platform.commons");
+    var condition = "org.junit.jupiter.api.condition";
+    if (api.isPresent() && commons.isPresent() && api.get().getPackages().contains(condition)) {
+      controller.addOpens(api.get(), condition, commons.get());
+    }
+    var loader = layer.findLoader("org.junit.platform.launcher");
+    run.log(INFO, "JUnit (in-process): %s", modules);
+    run.flush();
+    var thread = Thread.currentThread();
+    var contextLoader = thread.getContextClassLoader();
+    thread.setContextClassLoader(loader);
+    try {
+      var selectors = loader.loadClass("org.junit.platform.engine.discovery.DiscoverySelectors");
+      var selectModule = selectors.getMethod("selectModule", String.class);
+      var moduleSelectors = new ArrayList<>();
+      for (var module : modules) {
+        moduleSelectors.add(selectModule.invoke(null, module));
+      }
+      var builderType =
+          loader.loadClass("org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder");
+      var builder = builderType.getMethod("request").invoke(null);
+      builderType.getMethod("selectors", List.class).invoke(builder, moduleSelectors);
+      var request = builderType.getMethod("build").invoke(builder);
+
+      var listenerType = loader.loadClass("org.junit.platform.launcher.TestExecutionListener");
+      var summaryType =
+          loader.loadClass("org.junit.platform.launcher.listeners.SummaryGeneratingListener");
+      var summaryListener = summaryType.getConstructor().newInstance();
+      var reportsName = "org.junit.platform.reporting.legacy.xml.LegacyXmlReportGeneratingListener";
+      var reportsType = loader.loadClass(reportsName);
+      var reportsDirectory = Files.createDirectories(realm.target.resolve("junit-reports"));
+      var reportsListener =
+          reportsType
+              .getConstructor(Path.class, PrintWriter.class)
+              .newInstance(reportsDirectory, run.out);
+      var listeners = (Object[]) Array.newInstance(listenerType, 2);
+      listeners[0] = summaryListener;
+      listeners[1] = reportsListener;
+
+      var factoryType = loader.loadClass("org.junit.platform.launcher.core.LauncherFactory");
+      var launcher = factoryType.getMethod("create").invoke(null);
+      var launcherType = loader.loadClass("org.junit.platform.launcher.Launcher");
+      var requestType = loader.loadClass("org.junit.platform.launcher.LauncherDiscoveryRequest");
+      launcherType
+          .getMethod("execute", requestType, listeners.getClass())
+          .invoke(launcher, request, listeners);
+
+      var summary = summaryType.getMethod("getSummary").invoke(summaryListener);
+      var resultType =
+          loader.loadClass("org.junit.platform.launcher.listeners.TestExecutionSummary");
+      resultType.getMethod("printTo", PrintWriter.class).invoke(summary, run.out);
+      resultType.getMethod("printFailuresTo", PrintWriter.class).invoke(summary, run.err);
+      run.flush();
+      var found = (long) resultType.getMethod("getTestsFoundCount").invoke(summary);
+      if (found == 0) {
+        throw new AssertionError("JUnit run found no tests");
+      }
+      var failures = (long) resultType.getMethod("getTotalFailureCount").invoke(summary);
+      if (failures != 0) {
+        throw new AssertionError("JUnit run failed with " + failures + " failure(s)");
+      }
+    } catch (InvocationTargetException e) {
+      throw new Error("JUnit run failed", e.getCause());
+    } finally {
+      thread.setContextClassLoader(contextLoader);
+    }
+  }
+
   /** Generate documentation for given realm. */
   private void document(Run run, Realm realm) throws Exception {
     // TODO javadoc: error - Destination directory not writable: ${work}/main/compiled/javadoc
@@ -251,6 +1081,7 @@ class Make implements ToolProvider {
             .with(false, "-verbose")
             .with("-encoding", "UTF-8")
             .with("-quiet")
+            .with("-notimestamp")
             .with("-windowtitle", project + " " + version)
             .with("-d", realm.compiledJavadoc)
             .with("--module-source-path", String.join(File.pathSeparator, javaSources))
@@ -259,17 +1090,23 @@ class Make implements ToolProvider {
     if (!modulePath.isEmpty()) {
       javadoc.with("--module-path", modulePath);
     }
-    run.tool("javadoc", javadoc.toStringArray());
-    Files.createDirectories(realm.packagedJavadoc);
     var javadocJar = realm.packagedJavadoc.resolve(project + '-' + version + "-javadoc.jar");
-    var jar =
-        new Args()
-            .with(debug, "--verbose")
-            .with("--create")
-            .with("--file", javadocJar)
-            .with("-C", realm.compiledJavadoc)
-            .with(".");
-    run.tool("jar", jar.toStringArray());
+    var fingerprints = Fingerprints.load(realm.fingerprints.resolve("javadoc.properties"));
+    var digest =
+        new Digest()
+            .withEach(javadoc)
+            .withTree(tree, moduleSourcePath)
+            .withTrees(tree, modulePath)
+            .toString();
+    var key = javadocJar.getFileName().toString();
+    if (fingerprints.matches(key, digest) && Files.exists(javadocJar)) {
+      run.log(DEBUG, "Documentation of %s realm is up-to-date, skipping javadoc.", realm.name);
+      return;
+    }
+    run.tool("javadoc", javadoc.toStringArray());
+    run.archive(new Archive(javadocJar).with(realm.compiledJavadoc));
+    fingerprints.put(key, digest);
+    fingerprints.store();
   }
 
   /** Log summary for given realm. */
@@ -338,29 +1175,57 @@ class Make implements ToolProvider {
     final PrintWriter err;
     /** Time instant recorded on creation of this instance. */
     final Instant start;
+    /** Compile service shared by all builders of all realms. */
+    final Javac javac;
+    /** Value of the high-resolution time source recorded on creation of this instance. */
+    final long nanos;
+    /** Closed spans, in order of their completion. */
+    final Queue<Span> spans;
+    /** Asynchronous sink of log records. */
+    final LogSink sink;
+    /** Resolved tool providers and their invocation metrics. */
+    final Tools tools;
 
     Run(System.Logger.Level threshold, PrintWriter out, PrintWriter err) {
       this.threshold = threshold;
       this.out = out;
       this.err = err;
       this.start = Instant.now();
+      this.javac = new Javac();
+      this.nanos = System.nanoTime();
+      this.spans = new ConcurrentLinkedQueue<>();
+      this.sink = new LogSink(out, err);
+      this.tools = new Tools();
     }
 
-    /** Log message unless threshold suppresses it. */
+    /** Log message unless threshold suppresses it, formatting happens off the calling thread. */
     void log(System.Logger.Level level, String format, Object... args) {
       if (level.getSeverity() < threshold.getSeverity()) {
         return;
       }
-      var consumer = level.getSeverity() < WARNING.getSeverity() ? out : err;
-      var message = String.format(format, args);
-      consumer.println(message);
+      sink.add(new LogRecord(level, format, args));
+    }
+
+    /** Write all pending log records and flush both output streams. */
+    void flush() {
+      sink.flush();
     }
 
     /** Run provided tool. */
     void tool(String name, String... args) {
       log(DEBUG, "Running tool '%s' with: %s", name, List.of(args));
-      var tool = ToolProvider.findFirst(name).orElseThrow();
-      var code = tool.run(out, err, args);
+      flush(); // tools write to "out" and "err" directly
+      int code;
+      try (var span = span(name, "tool", "args", String.join(" ", args))) {
+        var provider = name.equals("javac") ? null : tools.provider(name);
+        var cpu = Tools.THREADS.getCurrentThreadCpuTime();
+        var wall = System.nanoTime();
+        code = provider == null ? javac.compile(err, args) : provider.run(out, err, args);
+        wall = System.nanoTime() - wall;
+        cpu = Tools.THREADS.getCurrentThreadCpuTime() - cpu;
+        tools.record(name, wall, cpu, code);
+        span.attributes.put("code", code);
+      }
       if (code == 0) {
         log(DEBUG, "Tool '%s' successfully executed.", name);
         return;
@@ -368,88 +1233,656 @@ class Make implements ToolProvider {
       throw new Error("Tool '" + name + "' execution failed with error code: " + code);
     }
 
+    /** Write given archive, recording its metrics as if the jar tool was run. */
+    void archive(Archive archive) {
+      log(DEBUG, "Writing archive %s from: %s", archive.file, archive.roots);
+      int code = 0;
+      try (var span = span("jar", "tool", "file", archive.file.toString())) {
+        var cpu = Tools.THREADS.getCurrentThreadCpuTime();
+        var wall = System.nanoTime();
+        try {
+          var entries = archive.write();
+          log(DEBUG, "Archive %s written with %d entries.", archive.file.getFileName(), entries);
+        } catch (IOException e) {
+          code = 1;
+          throw new Error("Writing archive failed: " + archive.file, e);
+        } finally {
+          wall = System.nanoTime() - wall;
+          cpu = Tools.THREADS.getCurrentThreadCpuTime() - cpu;
+          tools.record("jar", wall, cpu, code);
+          span.attributes.put("code", code);
+        }
+      }
+    }
+
     long toDurationMillis() {
       return TimeUnit.MILLISECONDS.convert(Duration.between(start, Instant.now()));
     }
-  }
 
-  /** Building block, source set, scope, directory, named context: {@code main}, {@code test}. */
-  static class Realm {
-    /** Create realm by guessing the module source path using its name. */
-    static Realm of(String name, Path home, Path target, Realm... requiredRealms) {
-      var source =
-          Util.findFirstDirectory(home, "src/" + name + "/java", "src/" + name, name)
-              .map(home::relativize)
-              .orElseThrow(() -> new Error("Couldn't find module source path!"));
-      // TODO Find at least one "module-info.java" file...
-      var modules = Util.listDirectoryNames(home.resolve(source));
-      var modulePaths =
-          Map.of(
-              "compile", modulePath(name, home, "compile", requiredRealms),
-              "runtime", modulePath(name, home, "runtime", requiredRealms));
-      return new Realm(name, source, modules, target, modulePaths);
+    /** Run action of the named phase of the given realm within a span. */
+    void phase(String name, String realm, Action action) throws Exception {
+      span(name, "phase", "realm", realm).run(action);
     }
 
-    /** Create module path. */
-    static List<Path> modulePath(String name, Path home, String phase, Realm... requiredRealms) {
-      var result = new ArrayList<Path>();
-      var candidates = List.of(name, name + "-" + phase + "-only");
-      for (var candidate : candidates) {
-        var lib = home.resolve("lib").resolve(candidate);
-        if (Files.isDirectory(lib)) {
-          result.add(lib);
-        }
+    /** Open span on the current thread, attributes are given as key-value pairs. */
+    Span span(String name, String category, Object... attributes) {
+      var span = new Span(this, name, category);
+      for (int i = 0; i < attributes.length; i += 2) {
+        span.attributes.put(attributes[i].toString(), attributes[i + 1]);
       }
-      for (var required : requiredRealms) {
-        result.add(required.packagedModules);
-        result.addAll(required.modulePaths.get(phase));
+      return span;
+    }
+
+    /** Write all closed spans as Chrome trace-event JSON to the given file. */
+    void trace(Path file) {
+      var events = new ArrayList<String>();
+      var threads = new TreeMap<Long, String>();
+      for (var span : spans) {
+        threads.put(span.thread, span.threadName);
+        var attributes =
+            span.attributes.entrySet().stream()
+                .map(e -> Util.json(e.getKey()) + ":" + Util.json(String.valueOf(e.getValue())))
+                .collect(Collectors.joining(","));
+        events.add(
+            String.format(
+                "{\"name\":%s,\"cat\":%s,\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+                    + "\"ts\":%d,\"dur\":%d,\"args\":{%s}}",
+                Util.json(span.name),
+                Util.json(span.category),
+                span.thread,
+                (span.begin - nanos) / 1000,
+                (span.end - span.begin) / 1000,
+                attributes));
+      }
+      threads.forEach(
+          (id, name) ->
+              events.add(
+                  String.format(
+                      "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,"
+                          + "\"args\":{\"name\":%s}}",
+                      id, Util.json(name))));
+      var json = "{\"traceEvents\":[\n" + String.join(",\n", events) + "\n]}\n";
+      try {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, json);
+      } catch (IOException e) {
+        log(WARNING, "Writing trace failed: %s", e);
       }
-      return result;
     }
+  }
 
-    /** Logical name of the realm. */
-    final String name;
-    /** Module source path. */
-    final Path source;
-    /** Path to external 3rd-party libraries. */
-    final Path libraries;
-    /** Names of all modules declared in this realm. */
-    final List<String> modules;
-    /** Target root. */
-    final Path target;
-    /** Module path map. */
-    final Map<String, List<Path>> modulePaths;
+  /** Log message captured on the calling thread, formatted later. */
+  static class LogRecord {
+    final System.Logger.Level level;
+    final Instant instant;
+    final String thread;
+    final String format;
+    final Object[] args;
+
+    LogRecord(System.Logger.Level level, String format, Object[] args) {
+      this.level = level;
+      this.instant = Instant.now();
+      this.thread = Thread.currentThread().getName();
+      this.format = format;
+      this.args = args;
+    }
 
-    final Path compiledBase;
-    final Path compiledJavadoc;
-    final Path compiledModules;
-    final Path compiledMulti;
-    final Path packagedJavadoc;
-    final Path packagedModules;
-    final Path packagedSources;
+    /** Format the message of this record. */
+    String message() {
+      return String.format(format, args);
+    }
 
-    Realm(
-        String name,
-        Path source,
-        List<String> modules,
-        Path target,
-        Map<String, List<Path>> modulePaths) {
-      this.name = name;
-      this.source = source;
-      this.modules = modules;
-      this.target = target;
-      this.modulePaths = modulePaths;
+    /** Render this record as a single line JSON object. */
+    String toJson(String message) {
+      return String.format(
+          "{\"time\":\"%s\",\"level\":\"%s\",\"thread\":%s,\"message\":%s}",
+          instant, level, Util.json(thread), Util.json(message));
+    }
+  }
 
-      this.libraries = Path.of("lib");
+  /** Bounded ring buffer of log records, written in order by a single background thread. */
+  static class LogSink {
+    /** Marker record signalling a flush request. */
+    private static final String FLUSH = "<flush>";
 
-      var work = target.resolve(name);
-      compiledBase = work.resolve("compiled");
-      compiledJavadoc = compiledBase.resolve("javadoc");
-      compiledModules = compiledBase.resolve("modules");
-      compiledMulti = compiledBase.resolve("multi-release");
+    private final PrintWriter out;
+    private final PrintWriter err;
+    private final BlockingQueue<Object> buffer;
+    private final Thread writer;
+    /** Optional structured JSON-lines sink. */
+    private volatile Writer file;
+    private volatile boolean closed;
+
+    LogSink(PrintWriter out, PrintWriter err) {
+      this.out = out;
+      this.err = err;
+      this.buffer = new ArrayBlockingQueue<>(Integer.getInteger("log.buffer", 4096));
+      this.writer = new Thread(this::drain, "make-log");
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    /** Also write each record as a JSON object line to the given file. */
+    void file(Path path) {
+      try {
+        Files.createDirectories(path.getParent());
+        file = Files.newBufferedWriter(path);
+      } catch (IOException e) {
+        err.println("Opening log file failed: " + e);
+      }
+    }
+
+    /** Add record, blocks while the buffer is full. */
+    void add(LogRecord record) {
+      if (closed) {
+        write(List.of(record));
+        return;
+      }
+      try {
+        buffer.put(record);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        write(List.of(record));
+      }
+      if (closed) {
+        drainRemaining(); // closed concurrently, the background thread may be gone already
+      }
+    }
+
+    /** Wait until all records added so far are written and flush all streams. */
+    void flush() {
+      if (closed || Thread.currentThread() == writer) {
+        return;
+      }
+      var latch = new CountDownLatch(1);
+      try {
+        buffer.put(latch);
+        if (closed) {
+          drainRemaining();
+        }
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /** Write all pending records, stop the background thread and close the file sink. */
+    void close() {
+      flush();
+      closed = true;
+      writer.interrupt();
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      drainRemaining();
+      var file = this.file;
+      this.file = null;
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    private void drain() {
+      var batch = new ArrayList<Object>();
+      while (!closed) {
+        try {
+          batch.add(buffer.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        buffer.drainTo(batch, 255);
+        process(batch);
+        batch.clear();
+      }
+    }
+
+    /** Write all records left in the buffer on the calling thread. */
+    private void drainRemaining() {
+      var batch = new ArrayList<Object>();
+      buffer.drainTo(batch);
+      process(batch);
+    }
+
+    /** Write records in order and release each flush request once its predecessors are written. */
+    private void process(List<Object> batch) {
+      var records = new ArrayList<LogRecord>();
+      for (var element : batch) {
+        if (element instanceof LogRecord) {
+          records.add((LogRecord) element);
+          continue;
+        }
+        try {
+          write(records);
+        } finally {
+          records.clear();
+          ((CountDownLatch) element).countDown();
+        }
+      }
+      write(records);
+    }
+
+    private synchronized void write(List<LogRecord> records) {
+      for (var record : records) {
+        String message;
+        try {
+          message = record.message();
+        } catch (RuntimeException e) {
+          message = "Formatting log record failed: " + e + " -- " + record.format;
+        }
+        var consumer = record.level.getSeverity() < WARNING.getSeverity() ? out : err;
+        consumer.println(message);
+        var file = this.file;
+        if (file != null) {
+          try {
+            file.write(record.toJson(message));
+            file.write('\n');
+          } catch (IOException e) {
+            this.file = null;
+            err.println("Writing log file failed: " + e);
+          }
+        }
+      }
+      out.flush();
+      err.flush();
+      var file = this.file;
+      if (file != null) {
+        try {
+          file.flush();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /** Registry of tool providers, each resolved once per process, with per-run metrics. */
+  static class Tools {
+    /** Thread management bean used to measure CPU time of tools running on calling threads. */
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    /** Tool providers resolved so far, shared by all runs of this process. */
+    private static final Map<String, ToolProvider> PROVIDERS = new ConcurrentHashMap<>();
+
+    /** Invocation metrics of a single tool. */
+    static class Metrics {
+      int count;
+      long wall;
+      long cpu;
+      int failures;
+      int code;
+    }
+
+    private final Map<String, Metrics> metrics = new TreeMap<>();
+
+    /** Resolve all named tools, failing fast if one of them is not available. */
+    void validate(String... names) {
+      for (var name : names) {
+        provider(name);
+      }
+    }
+
+    /** Return tool provider for the given name, scanning for it on first access only. */
+    ToolProvider provider(String name) {
+      return PROVIDERS.computeIfAbsent(
+          name, key -> ToolProvider.findFirst(key).orElseThrow(() -> new Error("No tool: " + key)));
+    }
+
+    /** Record a single invocation of the named tool. */
+    synchronized void record(String name, long wall, long cpu, int code) {
+      var tool = metrics.computeIfAbsent(name, key -> new Metrics());
+      tool.count++;
+      tool.wall += wall;
+      tool.cpu += cpu < 0 ? 0 : cpu;
+      tool.code = code;
+      if (code != 0) {
+        tool.failures++;
+      }
+    }
+
+    /** Format one line per invoked tool. */
+    synchronized List<String> toStrings() {
+      var lines = new ArrayList<String>();
+      for (var entry : metrics.entrySet()) {
+        var tool = entry.getValue();
+        lines.add(
+            String.format(
+                "  %-8s %4d call(s) %7d ms wall %7d ms cpu, %d failure(s), last exit code %d",
+                entry.getKey(),
+                tool.count,
+                TimeUnit.NANOSECONDS.toMillis(tool.wall),
+                TimeUnit.NANOSECONDS.toMillis(tool.cpu),
+                tool.failures,
+                tool.code));
+      }
+      return lines;
+    }
+  }
+
+  /** Timed section of work on a single thread, recorded by its run when closed. */
+  static class Span implements AutoCloseable {
+    final Run run;
+    final String name;
+    final String category;
+    final long thread;
+    final String threadName;
+    final long begin;
+    final Map<String, Object> attributes;
+    long end;
+
+    Span(Run run, String name, String category) {
+      this.run = run;
+      this.name = name;
+      this.category = category;
+      this.thread = Thread.currentThread().getId();
+      this.threadName = Thread.currentThread().getName();
+      this.attributes = new LinkedHashMap<>();
+      this.begin = System.nanoTime();
+    }
+
+    /** Run the given action and close this span afterwards. */
+    void run(Action action) throws Exception {
+      try {
+        action.run();
+      } finally {
+        close();
+      }
+    }
+
+    @Override
+    public void close() {
+      end = System.nanoTime();
+      run.spans.add(this);
+    }
+  }
+
+  /** Block of code that may throw any exception. */
+  interface Action {
+    void run() throws Exception;
+  }
+
+  /** In-process compile service reusing file managers and their opened archives. */
+  static class Javac {
+    private final JavaCompiler compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+    /** Idle file managers, keyed by all options except the names of the modules to compile. */
+    private final Map<List<String>, Deque<StandardJavaFileManager>> idle = new HashMap<>();
+    /** All file managers created by this service. */
+    private final List<StandardJavaFileManager> managers = new ArrayList<>();
+
+    /** Compile using the given command line arguments and return {@code 0} on success. */
+    int compile(PrintWriter writer, String... args) {
+      if (compiler == null) {
+        throw new Error("No system Java compiler available");
+      }
+      var managerOptions = new ArrayList<String>();
+      var compilerOptions = new ArrayList<String>();
+      var modules = new ArrayList<String>();
+      var files = new ArrayList<Path>();
+      for (int i = 0; i < args.length; i++) {
+        var option = args[i];
+        if (option.equals("--module")) {
+          modules.add(args[++i]);
+          continue;
+        }
+        var target = compilerOptions;
+        var count = compiler.isSupportedOption(option);
+        if (count < 0) {
+          target = managerOptions;
+          count = probe().isSupportedOption(option);
+        }
+        if (count < 0) {
+          files.add(Path.of(option));
+          continue;
+        }
+        target.addAll(List.of(args).subList(i, i + count + 1));
+        i += count;
+      }
+      var key = new ArrayList<>(managerOptions);
+      key.addAll(compilerOptions);
+      var options = new ArrayList<String>();
+      var manager = take(key);
+      if (manager == null) {
+        // locations of a file manager are configured once, they can't be reset later
+        manager = create();
+        options.addAll(managerOptions);
+      }
+      options.addAll(compilerOptions);
+      modules.forEach(module -> options.add("--module=" + module));
+      var units = files.isEmpty() ? null : manager.getJavaFileObjectsFromPaths(files);
+      try {
+        var success = compiler.getTask(writer, manager, null, options, null, units).call();
+        release(key, manager);
+        return success ? 0 : 1;
+      } catch (RuntimeException e) {
+        writer.println(e.getMessage()); // file manager in unknown state, drop it
+        return 2;
+      }
+    }
+
+    /** File manager used to classify options, never used for compilations. */
+    private StandardJavaFileManager probe;
+
+    private synchronized StandardJavaFileManager probe() {
+      if (probe == null) {
+        probe = create();
+      }
+      return probe;
+    }
+
+    private synchronized StandardJavaFileManager create() {
+      var manager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+      managers.add(manager);
+      return manager;
+    }
+
+    private synchronized StandardJavaFileManager take(List<String> key) {
+      var deque = idle.get(key);
+      return deque == null ? null : deque.poll();
+    }
+
+    private synchronized void release(List<String> key, StandardJavaFileManager manager) {
+      idle.computeIfAbsent(key, __ -> new ArrayDeque<>()).push(manager);
+    }
+
+    /** Close all file managers created by this service. */
+    synchronized void close() {
+      for (var manager : managers) {
+        try {
+          manager.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+      managers.clear();
+      idle.clear();
+      probe = null;
+    }
+  }
+
+  /** Reproducible jar file, written with sorted entries that all carry the same timestamp. */
+  static class Archive {
+    /** Return timestamp of all entries, read from {@code SOURCE_DATE_EPOCH} or 1980-01-01. */
+    static LocalDateTime timestamp() {
+      var epoch = System.getenv().getOrDefault("SOURCE_DATE_EPOCH", "315532800");
+      try {
+        return LocalDateTime.ofEpochSecond(Long.parseLong(epoch.strip()), 0, ZoneOffset.UTC);
+      } catch (RuntimeException e) {
+        throw new Error("SOURCE_DATE_EPOCH is not a number of seconds: " + epoch, e);
+      }
+    }
+
+    final Path file;
+    final LocalDateTime timestamp = timestamp();
+    /** Root directories keyed by their release, {@code 0} denotes the base entries. */
+    final Map<Integer, Path> roots = new TreeMap<>();
+
+    Archive(Path file) {
+      this.file = file;
+    }
+
+    /** Add root directory of base entries. */
+    Archive with(Path root) {
+      return with(0, root);
+    }
+
+    /** Add root directory of entries stored below {@code META-INF/versions/${release}}. */
+    Archive with(int release, Path root) {
+      roots.put(release, root);
+      return this;
+    }
+
+    /** Return digest of the timestamp, the roots and all their files. */
+    Digest digest() {
+      var digest = new Digest().with(file.getFileName()).with(timestamp);
+      roots.forEach((release, root) -> digest.with(release).withTree(root));
+      return digest;
+    }
+
+    /** Write the jar file and return the number of its entries. */
+    int write() throws IOException {
+      var manifest = new Manifest();
+      var attributes = manifest.getMainAttributes();
+      attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      attributes.putValue("Created-By", "Make.java");
+      var entries = new TreeMap<String, Path>();
+      for (var root : roots.entrySet()) {
+        var release = root.getKey();
+        var prefix = release == 0 ? "" : "META-INF/versions/" + release + '/';
+        if (release != 0) {
+          attributes.put(Attributes.Name.MULTI_RELEASE, "true");
+        }
+        try (var stream = Files.walk(root.getValue())) {
+          for (var path : stream.collect(Collectors.toList())) {
+            var relative = root.getValue().relativize(path).toString();
+            var name = prefix + relative.replace(File.separatorChar, '/');
+            if (Files.isDirectory(path)) {
+              if (!name.isEmpty() && !name.equals("META-INF")) {
+                entries.put(name.endsWith("/") ? name : name + '/', path);
+              }
+              continue;
+            }
+            if (name.equals(JarFile.MANIFEST_NAME)) {
+              try (var in = Files.newInputStream(path)) {
+                manifest.read(in); // merge attributes of a manifest provided by the module
+              }
+              continue;
+            }
+            entries.put(name, path);
+          }
+        }
+      }
+      Files.createDirectories(file.getParent());
+      try (var jar = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+        jar.putNextEntry(entry("META-INF/"));
+        jar.closeEntry();
+        jar.putNextEntry(entry(JarFile.MANIFEST_NAME));
+        manifest.write(jar);
+        jar.closeEntry();
+        for (var entry : entries.entrySet()) {
+          jar.putNextEntry(entry(entry.getKey()));
+          if (!entry.getKey().endsWith("/")) {
+            Files.copy(entry.getValue(), jar);
+          }
+          jar.closeEntry();
+        }
+      }
+      return entries.size() + 2;
+    }
+
+    private JarEntry entry(String name) {
+      var entry = new JarEntry(name);
+      entry.setTimeLocal(timestamp);
+      return entry;
+    }
+  }
+
+  /** Building block, source set, scope, directory, named context: {@code main}, {@code test}... */
+  static class Realm {
+    /** Create realm by guessing the module source path using its name. */
+    static Realm of(String name, Tree tree, Path home, Path target, Realm... requiredRealms) {
+      var source =
+          tree.findFirstDirectory(home, "src/" + name + "/java", "src/" + name, name)
+              .map(home::relativize)
+              .orElseThrow(() -> new Error("Couldn't find module source path!"));
+      // TODO Find at least one "module-info.java" file...
+      var modules = tree.listDirectoryNames(home.resolve(source));
+      var modulePaths =
+          Map.of(
+              "compile", modulePath(name, tree, home, "compile", requiredRealms),
+              "runtime", modulePath(name, tree, home, "runtime", requiredRealms));
+      return new Realm(name, source, modules, target, modulePaths);
+    }
+
+    /** Create module path. */
+    static List<Path> modulePath(
+        String name, Tree tree, Path home, String phase, Realm... requiredRealms) {
+      var result = new ArrayList<Path>();
+      var candidates = List.of(name, name + "-" + phase + "-only");
+      for (var candidate : candidates) {
+        var lib = home.resolve("lib").resolve(candidate);
+        if (tree.isDirectory(lib)) {
+          result.add(lib);
+        }
+      }
+      for (var required : requiredRealms) {
+        result.add(required.packagedModules);
+        result.addAll(required.modulePaths.get(phase));
+      }
+      return result;
+    }
+
+    /** Logical name of the realm. */
+    final String name;
+    /** Module source path. */
+    final Path source;
+    /** Path to external 3rd-party libraries. */
+    final Path libraries;
+    /** Names of all modules declared in this realm. */
+    final List<String> modules;
+    /** Target root. */
+    final Path target;
+    /** Module path map. */
+    final Map<String, List<Path>> modulePaths;
+
+    final Path compiledBase;
+    final Path compiledJavadoc;
+    final Path compiledModules;
+    final Path compiledMulti;
+    final Path fingerprints;
+    final Path packagedJavadoc;
+    final Path packagedModules;
+    final Path packagedSources;
+    /** Artifacts of forked runtimes, like class data sharing archives. */
+    final Path runtime;
+
+    Realm(
+        String name,
+        Path source,
+        List<String> modules,
+        Path target,
+        Map<String, List<Path>> modulePaths) {
+      this.name = name;
+      this.source = source;
+      this.modules = modules;
+      this.target = target;
+      this.modulePaths = modulePaths;
+
+      this.libraries = Path.of("lib");
+
+      var work = target.resolve(name);
+      compiledBase = work.resolve("compiled");
+      compiledJavadoc = compiledBase.resolve("javadoc");
+      compiledModules = compiledBase.resolve("modules");
+      compiledMulti = compiledBase.resolve("multi-release");
+      fingerprints = work.resolve("fingerprints");
       packagedJavadoc = work.resolve("javadoc");
       packagedModules = work.resolve("modules");
       packagedSources = work.resolve("sources");
+      runtime = work.resolve("runtime");
     }
 
     /** Realm does not need to be treated with jar, javadoc, and all the bells and whistles. */
@@ -462,230 +1895,1232 @@ class Make implements ToolProvider {
       return "test".equals(name);
     }
 
-    @Override
-    public String toString() {
-      return "Realm{" + "name=" + name + ", source=" + source + '}';
+    /** Launch Java Microbenchmark Harness for this realm. */
+    boolean containsBenchmarks() {
+      return "bench".equals(name);
+    }
+
+    @Override
+    public String toString() {
+      return "Realm{" + "name=" + name + ", source=" + source + '}';
+    }
+  }
+
+  /** Build modules. */
+  @FunctionalInterface
+  interface ModuleBuilder {
+    /** Build given modules and return list of modules actually built. */
+    List<String> build(List<String> modules);
+  }
+
+  /** Local cache of module build outputs, keyed by a digest of all inputs of a module build. */
+  class BuildCache {
+    final Run run;
+    final Realm realm;
+    /** Builder computing source digests of modules and their required realm modules. */
+    final DefaultBuilder sources;
+    /** Root directory holding one entry directory per key. */
+    final Path root;
+    /** Keys of modules built or restored by previous runs. */
+    final Fingerprints fingerprints;
+    final boolean enabled;
+
+    BuildCache(Run run, Realm realm, DefaultBuilder sources) {
+      this.run = run;
+      this.realm = realm;
+      this.sources = sources;
+      this.root = Store.of().root.resolve("build");
+      this.fingerprints = Fingerprints.load(realm.fingerprints.resolve("cache.properties"));
+      this.enabled = System.getProperty("make.build-cache", "true").equals("true");
+    }
+
+    /** Compute key of the given module, paths are left out to share entries across checkouts. */
+    String key(String module) {
+      return new Digest()
+          .with(Runtime.version())
+          .with(realm.name)
+          .with(module)
+          .with(version)
+          .with(sources.sourceDigest(module))
+          .withEach(sources.javacOptions())
+          .with(MultiReleaseBuilder.BASE)
+          .withEach(layout(module))
+          .with(Archive.timestamp())
+          .withJars(tree, realm.modulePaths.get("compile"))
+          .toString();
+    }
+
+    /** Return names of cached outputs and their locations relative to the project home. */
+    List<String> layout(String module) {
+      var layout = new ArrayList<String>();
+      outputs(module).forEach((name, path) -> layout.add(name + '=' + home.relativize(path)));
+      return layout;
+    }
+
+    /** Map names of cached outputs to their locations in the realm's target directory. */
+    Map<String, Path> outputs(String module) {
+      var outputs = new TreeMap<String, Path>();
+      outputs.put("compiled", realm.compiledModules.resolve(module));
+      for (var release = 7; release <= Runtime.version().feature(); release++) {
+        var javaR = "java-" + release;
+        outputs.put(javaR, realm.compiledMulti.resolve(javaR).resolve(module));
+      }
+      outputs.put("module.jar", realm.packagedModules.resolve(module + '-' + version + ".jar"));
+      var sourcesJar = module + '-' + version + "-sources.jar";
+      outputs.put("sources.jar", realm.packagedSources.resolve(sourcesJar));
+      return outputs;
+    }
+
+    /** Return {@code true} if the module was built with the given key and its outputs exist. */
+    boolean isUpToDate(String module, String key) {
+      var entry = root.resolve(key);
+      if (!enabled || !fingerprints.matches(module, key) || Files.notExists(entry)) {
+        return false;
+      }
+      for (var output : outputs(module).entrySet()) {
+        if (Files.exists(entry.resolve(output.getKey())) && Files.notExists(output.getValue())) {
+          return false;
+        }
+      }
+      run.log(DEBUG, "Module %s is up-to-date, skipping build.", module);
+      return true;
+    }
+
+    /** Copy cached outputs of the module into place, return {@code false} on a cache miss. */
+    boolean restore(String module, String key) {
+      var entry = root.resolve(key);
+      if (!enabled || Files.notExists(entry)) {
+        return false;
+      }
+      try {
+        for (var output : outputs(module).entrySet()) {
+          var cached = entry.resolve(output.getKey());
+          if (Files.exists(cached)) {
+            Util.deleteTree(output.getValue());
+            Util.copyTree(cached, output.getValue());
+          }
+        }
+      } catch (IOException e) {
+        run.log(WARNING, "Restoring %s from build cache failed: %s", module, e);
+        return false;
+      }
+      run.log(DEBUG, "Module %s restored from build cache: %s", module, entry.toUri());
+      fingerprints.put(module, key);
+      fingerprints.store();
+      return true;
+    }
+
+    /** Copy outputs of the module into a new cache entry, unless the entry already exists. */
+    void store(String module, String key) {
+      if (!enabled) {
+        return;
+      }
+      var entry = root.resolve(key);
+      try {
+        if (Files.notExists(entry)) {
+          var temporary = Files.createTempDirectory(Files.createDirectories(root), key);
+          for (var output : outputs(module).entrySet()) {
+            if (Files.exists(output.getValue())) {
+              Util.copyTree(output.getValue(), temporary.resolve(output.getKey()));
+            }
+          }
+          try {
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+          } catch (IOException e) {
+            Util.deleteTree(temporary); // entry stored concurrently by another build
+          }
+        }
+      } catch (IOException e) {
+        run.log(WARNING, "Storing %s in build cache failed: %s", module, e);
+        return;
+      }
+      fingerprints.put(module, key);
+      fingerprints.store();
+    }
+  }
+
+  /** Build modules using default jigsaw directory layout. */
+  class DefaultBuilder implements ModuleBuilder {
+    final Run run;
+    final Realm realm;
+    final Path moduleSourcePath;
+    /** Memoized source digests, including the digests of required modules of this realm. */
+    private final Map<String, String> sourceDigests = new HashMap<>();
+    /** Fingerprints of modules compiled by previous runs. */
+    final Fingerprints fingerprints;
+    /** Fingerprints of archives packaged by previous runs. */
+    private final Fingerprints archives;
+
+    DefaultBuilder(Run run, Realm realm) {
+      this.run = run;
+      this.realm = realm;
+      this.moduleSourcePath = home.resolve(realm.source);
+      this.fingerprints = Fingerprints.load(realm.fingerprints.resolve("compile.properties"));
+      this.archives = Fingerprints.load(realm.fingerprints.resolve("jar.properties"));
+    }
+
+    @Override
+    public List<String> build(List<String> modules) {
+      run.log(DEBUG, "Building %d module(s): %s", modules.size(), modules);
+      compile(modules);
+      if (realm.compileOnly()) {
+        return modules;
+      }
+      try {
+        for (var module : modules) {
+          jarModule(module);
+          jarSources(module);
+          // TODO Create javadoc and "-javadoc.jar" for this module
+        }
+      } catch (Exception e) {
+        throw new Error("Building modules failed!", e);
+      }
+      return List.copyOf(modules);
+    }
+
+    /** Return options passed to each javac call, none of them refers to a path. */
+    Args javacOptions() {
+      return new Args().with(false, "-verbose").with("-encoding", "UTF-8").with("-Xlint");
+    }
+
+    private void compile(List<String> modules) {
+      var javac =
+          javacOptions()
+              .with("-d", realm.compiledModules)
+              .with("--module-version", version)
+              .with("--module-source-path", moduleSourcePath);
+
+      // modules of this realm are covered by their source digests, see sourceDigest(String),
+      // and their packaged modules are left out as those only exist after a first build
+      var compileModulePath = realm.modulePaths.get("compile");
+      var inputs = new Digest().withEach(javac).withEach(compileModulePath);
+      inputs.withTrees(tree, compileModulePath);
+
+      var modulePath = new ArrayList<Path>();
+      if (Files.exists(realm.packagedModules)) {
+        modulePath.add(realm.packagedModules);
+      }
+      modulePath.addAll(compileModulePath);
+      if (!modulePath.isEmpty()) {
+        javac.with("--module-path", modulePath);
+      }
+
+      var digests = new HashMap<String, String>();
+      var staleModules = new ArrayList<String>();
+      for (var module : modules) {
+        var digest = new Digest().with(inputs).with(sourceDigest(module)).toString();
+        digests.put(module, digest);
+        if (fingerprints.matches(module, digest)
+            && Files.isDirectory(realm.compiledModules.resolve(module))) {
+          run.log(DEBUG, "Module %s is up-to-date, skipping compilation.", module);
+          continue;
+        }
+        staleModules.add(module);
+      }
+      if (staleModules.isEmpty()) {
+        run.log(DEBUG, "All %d module(s) are up-to-date.", modules.size());
+        return;
+      }
+      javac.with("--module", String.join(",", staleModules));
+      run.tool("javac", javac.toStringArray());
+      staleModules.forEach(module -> fingerprints.put(module, digests.get(module)));
+      fingerprints.store();
+    }
+
+    /** Compute digest of the module's sources and the sources of its required realm modules. */
+    synchronized String sourceDigest(String module) {
+      var digest = sourceDigests.get(module);
+      if (digest != null) {
+        return digest;
+      }
+      sourceDigests.put(module, ""); // guard against cyclic requires, javac reports them
+      var root = moduleSourcePath.resolve(module);
+      var sources = new Digest().with(module).withTree(tree, root);
+      for (var required : ModuleInfo.of(tree, root).requires) {
+        if (realm.modules.contains(required)) {
+          sources.with(sourceDigest(required));
+        }
+      }
+      digest = sources.toString();
+      sourceDigests.put(module, digest);
+      return digest;
+    }
+
+    /** Write archive unless it exists and all of its inputs are unchanged. */
+    void jar(Archive archive) {
+      var key = archive.file.getFileName().toString();
+      var value = archive.digest().toString();
+      if (Files.exists(archive.file) && archives.matches(key, value)) {
+        run.log(DEBUG, "Archive %s is up-to-date, skipping jar.", key);
+        return;
+      }
+      run.archive(archive);
+      archives.put(key, value);
+      archives.store();
+    }
+
+    private void jarModule(String module) throws Exception {
+      var modularJar = realm.packagedModules.resolve(module + '-' + version + ".jar");
+      jar(new Archive(modularJar).with(realm.compiledModules.resolve(module)));
+    }
+
+    private void jarSources(String module) throws Exception {
+      var sourcesJar = realm.packagedSources.resolve(module + '-' + version + "-sources.jar");
+      jar(new Archive(sourcesJar).with(moduleSourcePath.resolve(module)));
+    }
+  }
+
+  /** Build multi-release modules. */
+  class MultiReleaseBuilder extends DefaultBuilder {
+
+    /** Lowest release of multi-release modules, compiled to unversioned entries. */
+    static final int BASE = 8; // TODO Find declared low base number: "java-*"
+
+    private final Pattern javaReleasePattern = Pattern.compile("java-\\d+");
+    /** Executor running the compilations of releases above the base release. */
+    private final Executor executor;
+
+    MultiReleaseBuilder(Run run, Realm realm, Executor executor) {
+      super(run, realm);
+      this.executor = executor;
+    }
+
+    @Override
+    public List<String> build(List<String> modules) {
+      var result = new ArrayList<String>();
+      for (var module : modules) {
+        if (build(module)) {
+          result.add(module);
+        }
+      }
+      return result;
+    }
+
+    private boolean build(String module) {
+      var names = tree.listDirectoryNames(moduleSourcePath.resolve(module));
+      if (names.isEmpty()) {
+        return false; // empty source path or just a sole "module-info.java" file...
+      }
+      if (!names.stream().allMatch(javaReleasePattern.asMatchPredicate())) {
+        return false;
+      }
+      run.log(DEBUG, "Building multi-release module: %s", module);
+      int base = BASE;
+      compile(module, base, base);
+      // releases above the base only depend on the base output via "--patch-module"
+      var releases = new ArrayList<CompletableFuture<Void>>();
+      for (var release = base + 1; release <= Runtime.version().feature(); release++) {
+        var javaRelease = release;
+        Runnable task = () -> compile(module, base, javaRelease);
+        releases.add(CompletableFuture.runAsync(task, executor));
+      }
+      Util.join(CompletableFuture.allOf(releases.toArray(CompletableFuture[]::new)));
+      if (realm.compileOnly()) {
+        return true;
+      }
+      try {
+        jarModule(module, base);
+        jarSources(module, base);
+        // TODO Create "-javadoc.jar" for this multi-release module
+      } catch (Exception e) {
+        throw new Error("Building module " + module + " failed!", e);
+      }
+      return true;
+    }
+
+    private void compile(String module, int base, int release) {
+      var moduleSourcePath = home.resolve(realm.source);
+      var javaR = "java-" + release;
+      var source = moduleSourcePath.resolve(module).resolve(javaR);
+      if (!tree.exists(source)) {
+        run.log(DEBUG, "Skipping %s, no source path exists: %s", javaR, source);
+        return;
+      }
+      var destination = realm.compiledMulti.resolve(javaR);
+      var javac = javacOptions().with("--release", release);
+      if (release < 9) {
+        javac.with("-d", destination.resolve(module));
+        // TODO "-cp" ...
+        javac.withEach(tree.listJavaFiles(source)); // javac.with("**/*.java");
+      } else {
+        javac.with("-d", destination);
+        javac.with("--module-version", version);
+        javac.with("--module-path", realm.modulePaths.get("compile"));
+        var pathR = moduleSourcePath + File.separator + "*" + File.separator + javaR;
+        var sources = List.of(pathR, "" + moduleSourcePath);
+        javac.with("--module-source-path", String.join(File.pathSeparator, sources));
+        javac.with(
+            "--patch-module",
+            module + '=' + realm.compiledMulti.resolve("java-" + base).resolve(module));
+        javac.with("--module", module);
+      }
+      var key = module + '/' + javaR;
+      var digest =
+          new Digest()
+              .withEach(javac)
+              .with(sourceDigest(module))
+              .withTrees(tree, realm.modulePaths.get("compile"))
+              .toString();
+      if (fingerprints.matches(key, digest) && Files.isDirectory(destination.resolve(module))) {
+        run.log(DEBUG, "Module %s for %s is up-to-date, skipping compilation.", module, javaR);
+        return;
+      }
+      run.tool("javac", javac.toStringArray());
+      fingerprints.put(key, digest);
+      fingerprints.store();
+    }
+
+    private void jarModule(String module, int base) throws Exception {
+      var file = realm.packagedModules.resolve(module + '-' + version + ".jar");
+      var source = realm.compiledMulti;
+      var javaBase = source.resolve("java-" + base).resolve(module);
+      var jar = new Archive(file).with(javaBase); // "base" classes
+      // "base" + 1 .. N files
+      for (var release = base + 1; release <= Runtime.version().feature(); release++) {
+        var javaRelease = source.resolve("java-" + release).resolve(module);
+        if (Files.notExists(javaRelease)) {
+          continue;
+        }
+        jar.with(release, javaRelease);
+      }
+      jar(jar);
+    }
+
+    private void jarSources(String module, int base) throws Exception {
+      var file = realm.packagedSources.resolve(module + '-' + version + "-sources.jar");
+      var source = home.resolve(realm.source).resolve(module);
+      var javaBase = source.resolve("java-" + base);
+      var jar = new Archive(file).with(javaBase); // "base" classes
+      // "base" + 1 .. N files
+      for (var release = base + 1; release <= Runtime.version().feature(); release++) {
+        var javaRelease = source.resolve("java-" + release);
+        if (Files.notExists(javaRelease)) {
+          continue;
+        }
+        jar.with(release, javaRelease);
+      }
+      jar(jar);
+    }
+  }
+
+  /** Resident build server keeping a warm JVM, accepting requests on a loopback socket. */
+  static class Daemon {
+    /** Prefixes of system properties owned by the Java runtime, those are never forwarded. */
+    private static final Pattern RUNTIME_PROPERTY =
+        Pattern.compile("(daemon|awt|file|java|javax|jdk|jnu|line|native|os|path|sun|user)\\b.*");
+
+    /** Return path of the file holding port and access token of a running daemon. */
+    static Path file(Path home) {
+      return home.resolve("work").resolve("daemon.properties");
+    }
+
+    /** Serve build requests until a stop request is received. */
+    static int serve(Path home) {
+      var loopback = InetAddress.getLoopbackAddress();
+      var file = file(home);
+      try (var server = new ServerSocket(0, 50, loopback)) {
+        var token = UUID.randomUUID().toString();
+        var properties = new Properties();
+        properties.setProperty("port", Integer.toString(server.getLocalPort()));
+        properties.setProperty("token", token);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        // the token is the only guard of the loopback socket, keep it readable by the owner only
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+          var permissions = PosixFilePermissions.fromString("rw-------");
+          Files.createFile(file, PosixFilePermissions.asFileAttribute(permissions));
+        }
+        try (var stream = Files.newOutputStream(file)) {
+          properties.store(stream, "Make.java daemon");
+        }
+        System.out.printf("Make.java daemon listening on port %d%n", server.getLocalPort());
+        var daemon = new Daemon(home);
+        while (true) {
+          try (var socket = server.accept()) {
+            if (!daemon.handle(socket, token)) {
+              return 0;
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      } catch (Exception e) {
+        throw new Error("Daemon failed", e);
+      } finally {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    /** Send arguments, or a stop request if {@code null}, to a running daemon. */
+    static Optional<Integer> send(Path home, String[] args) {
+      var file = file(home);
+      if (Files.notExists(file)) {
+        if (args == null) {
+          throw new Error("No daemon running for: " + home);
+        }
+        return Optional.empty();
+      }
+      var properties = new Properties();
+      try (var stream = Files.newInputStream(file)) {
+        properties.load(stream);
+      } catch (Exception e) {
+        return Optional.empty();
+      }
+      var port = Integer.parseInt(properties.getProperty("port"));
+      try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        output.writeUTF(properties.getProperty("token"));
+        // forward system properties of this JVM, like those set via "-Dkey=value", to the daemon
+        var options = new TreeMap<String, String>();
+        for (var key : System.getProperties().stringPropertyNames()) {
+          if (!RUNTIME_PROPERTY.matcher(key).matches()) {
+            options.put(key, System.getProperty(key));
+          }
+        }
+        output.writeInt(options.size());
+        for (var option : options.entrySet()) {
+          output.writeUTF(option.getKey() + '=' + option.getValue());
+        }
+        output.writeInt(args == null ? -1 : args.length);
+        for (var arg : args == null ? new String[0] : args) {
+          output.writeUTF(arg);
+        }
+        output.flush();
+        var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        while (true) {
+          var kind = input.readByte();
+          if (kind == 'x') {
+            return Optional.of(input.readInt());
+          }
+          (kind == 'o' ? System.out : System.err).print(input.readUTF());
+        }
+      } catch (ConnectException e) {
+        return Optional.empty(); // stale daemon file, build locally
+      } catch (IOException e) {
+        throw new Error("Communicating with daemon failed", e);
+      }
+    }
+
+    final Path home;
+    /** Realms resolved by a previous request. */
+    private List<Realm> realms;
+    /** Module directory names of all realms when they were resolved. */
+    private List<List<String>> signature;
+
+    Daemon(Path home) {
+      this.home = home;
+    }
+
+    /** Handle single request and return {@code false} if the daemon should stop. */
+    boolean handle(Socket socket, String token) throws Exception {
+      var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      // any local user may connect, don't let a silent or stalled client block the daemon
+      socket.setSoTimeout(Integer.getInteger("daemon.timeout", 2000));
+      try {
+        if (!token.equals(input.readUTF())) {
+          return true;
+        }
+      } catch (SocketTimeoutException e) {
+        System.err.println("No token received in time, closing connection.");
+        return true;
+      }
+      var options = new Properties();
+      for (int i = input.readInt(); i > 0; i--) {
+        var option = input.readUTF();
+        var index = option.indexOf('=');
+        options.setProperty(
+            index < 0 ? option : option.substring(0, index),
+            index < 0 ? "" : option.substring(index + 1));
+      }
+      var count = input.readInt();
+      if (count < 0) {
+        output.writeByte('x');
+        output.writeInt(0);
+        output.flush();
+        return false;
+      }
+      var args = new String[count];
+      for (int i = 0; i < count; i++) {
+        args[i] = input.readUTF();
+      }
+      var out = new PrintWriter(new FrameWriter(output, 'o'), true);
+      var err = new PrintWriter(new FrameWriter(output, 'e'), true);
+      var previous = new HashMap<String, String>();
+      for (var key : options.stringPropertyNames()) {
+        previous.put(key, System.getProperty(key));
+        System.setProperty(key, options.getProperty(key));
+      }
+      int code;
+      try {
+        code = make().run(out, err, args);
+      } finally {
+        previous.forEach(
+            (key, value) -> {
+              if (value == null) {
+                System.clearProperty(key);
+              } else {
+                System.setProperty(key, value);
+              }
+            });
+      }
+      out.flush();
+      err.flush();
+      synchronized (output) {
+        output.writeByte('x');
+        output.writeInt(code);
+        output.flush();
+      }
+      return true;
+    }
+
+    /** Create a maker instance, reusing realms unless their module directories changed. */
+    private Make make() {
+      var tree = index(home);
+      var current =
+          realms == null
+              ? null
+              : realms.stream()
+                  .map(realm -> tree.listDirectoryNames(home.resolve(realm.source)))
+                  .collect(Collectors.toList());
+      if (realms == null || !current.equals(signature)) {
+        realms = realms(home, tree);
+        signature =
+            realms.stream()
+                .map(realm -> tree.listDirectoryNames(home.resolve(realm.source)))
+                .collect(Collectors.toList());
+      }
+      return of(home, realms, tree);
+    }
+
+    /** Writer sending chunks of characters as frames of the given kind. */
+    static class FrameWriter extends Writer {
+      private final DataOutputStream stream;
+      private final char kind;
+
+      FrameWriter(DataOutputStream stream, char kind) {
+        this.stream = stream;
+        this.kind = kind;
+      }
+
+      @Override
+      public void write(char[] buffer, int offset, int length) throws IOException {
+        synchronized (stream) {
+          for (int i = 0; i < length; i += 8192) {
+            stream.writeByte(kind);
+            stream.writeUTF(new String(buffer, offset + i, Math.min(8192, length - i)));
+          }
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        synchronized (stream) {
+          stream.flush();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    }
+  }
+
+  /** Module declaration information parsed from a {@code module-info.java} compilation unit. */
+  static class ModuleInfo {
+    /** Pattern matching {@code requires [transitive|static] name;} directives. */
+    private static final Pattern REQUIRES_PATTERN =
+        Pattern.compile("requires\\s+(?:(?:transitive|static)\\s+)*([\\w.]+)\\s*;");
+
+    /** Pattern matching block and line comments. */
+    private static final Pattern COMMENT_PATTERN = Pattern.compile("(?s)/\\*.*?\\*/|//[^\\n]*");
+
+    /** Parse all {@code module-info.java} files found in the given module source root. */
+    static ModuleInfo of(Tree tree, Path root) {
+      var direct = root.resolve("module-info.java");
+      var infos =
+          tree.isRegularFile(direct)
+              ? List.of(direct)
+              : tree.listFiles(root, Util.named("module-info.java"));
+      if (infos.isEmpty()) {
+        return new ModuleInfo(Set.of());
+      }
+      try {
+        var requires = new TreeSet<String>(); // union of all releases of multi-release modules
+        for (var info : infos) {
+          var source = COMMENT_PATTERN.matcher(Files.readString(info)).replaceAll(" ");
+          var matcher = REQUIRES_PATTERN.matcher(source);
+          while (matcher.find()) {
+            requires.add(matcher.group(1));
+          }
+        }
+        return new ModuleInfo(requires);
+      } catch (Exception e) {
+        throw new Error("Parsing module-info.java failed for: " + root, e);
+      }
+    }
+
+    /** Names of all required modules. */
+    final Set<String> requires;
+
+    ModuleInfo(Set<String> requires) {
+      this.requires = Set.copyOf(requires);
+    }
+  }
+
+  /** In-memory index of file trees, walked once and queried many times. */
+  static class Tree {
+    /** Index covering no roots, all of its queries are answered by the file system. */
+    static final Tree EMPTY = new Tree(List.of());
+
+    /** Walk all given roots, a missing root is indexed as such. */
+    static Tree of(Path... roots) {
+      var tree = new Tree(Arrays.stream(roots).map(Tree::normalize).collect(Collectors.toList()));
+      tree.roots.forEach(tree::walk);
+      return tree;
+    }
+
+    private static Path normalize(Path path) {
+      return path.toAbsolutePath().normalize();
+    }
+
+    private final List<Path> roots;
+    private final Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+    private final Map<Path, List<Path>> children = new HashMap<>();
+
+    Tree(List<Path> roots) {
+      this.roots = roots;
+    }
+
+    /** Test whether the given path is located within one of the indexed roots. */
+    boolean covers(Path path) {
+      return roots.stream().anyMatch(path::startsWith);
+    }
+
+    /** Return attributes of the given indexed path, or {@code null} if it doesn't exist. */
+    synchronized BasicFileAttributes attributes(Path path) {
+      var normalized = normalize(path);
+      if (covers(normalized)) {
+        return attributes.get(normalized);
+      }
+      try {
+        return Files.readAttributes(normalized, BasicFileAttributes.class);
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    boolean exists(Path path) {
+      return attributes(path) != null;
+    }
+
+    boolean isDirectory(Path path) {
+      var attributes = attributes(path);
+      return attributes != null && attributes.isDirectory();
+    }
+
+    boolean isRegularFile(Path path) {
+      var attributes = attributes(path);
+      return attributes != null && attributes.isRegularFile();
+    }
+
+    /** Return first existing directory, resolved against the home path. */
+    Optional<Path> findFirstDirectory(Path home, String... paths) {
+      return Arrays.stream(paths).map(home::resolve).filter(this::isDirectory).findFirst();
+    }
+
+    /** Return sorted list of child directory names directly present in {@code root} path. */
+    synchronized List<String> listDirectoryNames(Path root) {
+      var normalized = normalize(root);
+      if (!covers(normalized)) {
+        return Util.listDirectoryNames(root);
+      }
+      return children.getOrDefault(normalized, List.of()).stream()
+          .filter(path -> attributes.get(path).isDirectory())
+          .map(path -> path.getFileName().toString())
+          .sorted()
+          .collect(Collectors.toList());
+    }
+
+    /** List all regular files below the given root matching the given filter. */
+    synchronized List<Path> listFiles(Path root, Predicate<Path> filter) {
+      var normalized = normalize(root);
+      if (!covers(normalized)) {
+        return Util.listFiles(List.of(root), filter);
+      }
+      var files = new ArrayList<Path>();
+      var pending = new ArrayDeque<Path>();
+      pending.add(normalized);
+      while (!pending.isEmpty()) {
+        var path = pending.removeFirst();
+        var attributes = this.attributes.get(path);
+        if (attributes == null) {
+          continue;
+        }
+        if (attributes.isDirectory()) {
+          pending.addAll(children.getOrDefault(path, List.of()));
+          continue;
+        }
+        if (attributes.isRegularFile() && filter.test(path)) {
+          files.add(root.resolve(normalized.relativize(path)));
+        }
+      }
+      return files;
+    }
+
+    /** List all regular Java files below the given root, their names contain a single dot. */
+    List<Path> listJavaFiles(Path root) {
+      return listFiles(
+          root,
+          path -> {
+            var name = path.getFileName().toString();
+            return name.endsWith(".java") && name.indexOf('.') == name.length() - 5;
+          });
+    }
+
+    /** Walk the given directory again, replacing all of its entries indexed so far. */
+    synchronized void refresh(Path directory) {
+      var root = normalize(directory);
+      if (!covers(root)) {
+        return;
+      }
+      var pending = new ArrayDeque<Path>(List.of(root));
+      while (!pending.isEmpty()) {
+        var path = pending.removeFirst();
+        attributes.remove(path);
+        pending.addAll(children.getOrDefault(path, List.of()));
+        children.remove(path);
+      }
+      var siblings = children.get(root.getParent());
+      if (siblings != null) {
+        siblings.remove(root);
+      }
+      walk(root);
+      if (siblings != null) {
+        siblings.sort(null);
+      }
+    }
+
+    private void walk(Path root) {
+      var visitor =
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) {
+              children.put(directory, new ArrayList<>());
+              return visitFile(directory, attrs);
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              attributes.put(file, attrs);
+              var siblings = children.get(file.getParent());
+              if (siblings != null) {
+                siblings.add(file);
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+              children.get(directory).sort(null);
+              return FileVisitResult.CONTINUE;
+            }
+          };
+      try {
+        Files.walkFileTree(root, visitor);
+      } catch (IOException e) {
+        throw new Error("Walking file tree failed for: " + root, e);
+      }
     }
   }
 
-  /** Build modules. */
-  @FunctionalInterface
-  interface ModuleBuilder {
-    /** Build given modules and return list of modules actually built. */
-    List<String> build(List<String> modules);
-  }
+  /** Test results read from legacy XML reports written by JUnit Platform. */
+  static class TestReport {
+    /** Pattern matching a {@code <testcase ...>} element, either empty or with its content. */
+    private static final Pattern TESTCASE_PATTERN =
+        Pattern.compile("(?s)<testcase\\b([^>]*?)(?:/>|>(.*?)</testcase>)");
 
-  /** Build modules using default jigsaw directory layout. */
-  class DefaultBuilder implements ModuleBuilder {
-    final Run run;
-    final Realm realm;
-    final Path moduleSourcePath;
+    /** Pattern matching a single attribute of a start tag. */
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("([\\w:-]+)=\"([^\"]*)\"");
 
-    DefaultBuilder(Run run, Realm realm) {
-      this.run = run;
-      this.realm = realm;
-      this.moduleSourcePath = home.resolve(realm.source);
-    }
+    /** Default class name pattern of JUnit Platform's console launcher. */
+    private static final Pattern CLASS_NAME_PATTERN =
+        Pattern.compile("^(Test.*|.+[.$]Test.*|.*Tests?)$");
 
-    @Override
-    public List<String> build(List<String> modules) {
-      run.log(DEBUG, "Building %d module(s): %s", modules.size(), modules);
-      compile(modules);
-      if (realm.compileOnly()) {
-        return modules;
+    /** Parse all test cases found in the reports of the given directory. */
+    static List<TestReport> parse(Path directory) {
+      var cases = new ArrayList<TestReport>();
+      if (!Files.isDirectory(directory)) {
+        return cases;
       }
-      try {
-        for (var module : modules) {
-          jarModule(module);
-          jarSources(module);
-          // TODO Create javadoc and "-javadoc.jar" for this module
+      var files = Util.listFiles(directory, name -> name.startsWith("TEST-"));
+      files.sort(null);
+      for (var file : files) {
+        try {
+          var matcher = TESTCASE_PATTERN.matcher(Files.readString(file));
+          while (matcher.find()) {
+            var attributes = new HashMap<String, String>();
+            var attribute = ATTRIBUTE_PATTERN.matcher(matcher.group(1));
+            while (attribute.find()) {
+              attributes.put(attribute.group(1), attribute.group(2));
+            }
+            var time = attributes.getOrDefault("time", "0").replace(",", "");
+            var content = matcher.group(2) == null ? "" : matcher.group(2);
+            var outcome =
+                content.contains("<skipped")
+                    ? "SKIPPED"
+                    : content.contains("<failure")
+                        ? "FAILED"
+                        : content.contains("<error") ? "ERROR" : "PASSED";
+            var report =
+                new TestReport(
+                    file.getFileName().toString(),
+                    attributes.getOrDefault("classname", ""),
+                    attributes.getOrDefault("name", ""),
+                    Double.parseDouble(time),
+                    outcome);
+            cases.add(report);
+          }
+        } catch (Exception e) {
+          throw new Error("Parsing test report failed: " + file, e);
         }
-      } catch (Exception e) {
-        throw new Error("Building modules failed!", e);
       }
-      return List.copyOf(modules);
+      return cases;
     }
 
-    private void compile(List<String> modules) {
-      var javac =
-          new Args()
-              .with(false, "-verbose")
-              .with("-encoding", "UTF-8")
-              .with("-Xlint")
-              .with("-d", realm.compiledModules)
-              .with("--module-version", version)
-              .with("--module-source-path", moduleSourcePath)
-              .with("--module", String.join(",", modules));
+    /** Sum durations per test class, the longest one wins if a class is listed in two files. */
+    static Map<String, Double> durations(List<TestReport> cases) {
+      var files = new HashMap<String, Map<String, Double>>();
+      for (var report : cases) {
+        files
+            .computeIfAbsent(report.file, key -> new HashMap<>())
+            .merge(report.className, report.time, Double::sum);
+      }
+      var durations = new HashMap<String, Double>();
+      files.values().forEach(map -> map.forEach((k, v) -> durations.merge(k, v, Math::max)));
+      return durations;
+    }
 
-      var modulePath = new ArrayList<Path>();
-      if (Files.exists(realm.packagedModules)) {
-        modulePath.add(realm.packagedModules);
+    /** List names of top-level test classes compiled into the given directory. */
+    static List<String> findTestClasses(Path directory) {
+      var classes = new ArrayList<String>();
+      if (!Files.isDirectory(directory)) {
+        return classes;
       }
-      modulePath.addAll(realm.modulePaths.get("compile"));
-      if (!modulePath.isEmpty()) {
-        javac.with("--module-path", modulePath);
+      for (var file : Util.listFiles(directory, name -> name.endsWith(".class"))) {
+        var path = directory.relativize(file).toString();
+        var name = path.substring(0, path.length() - 6).replace(File.separatorChar, '.');
+        if (name.contains("$") || name.equals("module-info")) {
+          continue; // nested classes are discovered by their enclosing class
+        }
+        if (CLASS_NAME_PATTERN.matcher(name).matches()) {
+          classes.add(name);
+        }
       }
-
-      run.tool("javac", javac.toStringArray());
+      classes.sort(null);
+      return classes;
     }
 
-    private void jarModule(String module) throws Exception {
-      Files.createDirectories(realm.packagedModules);
-      var modularJar = realm.packagedModules.resolve(module + '-' + version + ".jar");
-      var jar =
-          new Args()
-              .with(debug, "--verbose")
-              .with("--create")
-              .with("--file", modularJar)
-              .with("-C", realm.compiledModules.resolve(module))
-              .with(".");
-      run.tool("jar", jar.toStringArray());
+    /** Distribute classes to shards, longest first to the least loaded shard. */
+    static List<List<String>> balance(List<String> classes, Map<String, Double> durations, int n) {
+      var known = durations.values().stream().mapToDouble(Double::doubleValue).average();
+      var unknown = known.orElse(1.0); // classes without history weigh like an average one
+      var sorted = new ArrayList<>(classes);
+      sorted.sort(
+          Comparator.comparingDouble((String name) -> durations.getOrDefault(name, unknown))
+              .reversed()
+              .thenComparing(Comparator.naturalOrder()));
+      var count = Math.min(n, sorted.size());
+      var shards = new ArrayList<List<String>>();
+      var loads = new double[count];
+      for (int i = 0; i < count; i++) {
+        shards.add(new ArrayList<>());
+      }
+      for (var name : sorted) {
+        var least = 0;
+        for (int i = 1; i < count; i++) {
+          if (loads[i] < loads[least]) {
+            least = i;
+          }
+        }
+        shards.get(least).add(name);
+        loads[least] += durations.getOrDefault(name, unknown);
+      }
+      return shards;
     }
 
-    private void jarSources(String module) throws Exception {
-      Files.createDirectories(realm.packagedSources);
-      var sourcesJar = realm.packagedSources.resolve(module + '-' + version + "-sources.jar");
-      var jar =
-          new Args()
-              .with(debug, "--verbose")
-              .with("--create")
-              .with("--file", sourcesJar)
-              .with("-C", moduleSourcePath.resolve(module))
-              .with(".");
-      run.tool("jar", jar.toStringArray());
+    /** File name of the report. */
+    final String file;
+    /** Name of the test class. */
+    final String className;
+    /** Display name of the test case. */
+    final String name;
+    /** Duration in seconds. */
+    final double time;
+    /** One of {@code PASSED}, {@code SKIPPED}, {@code FAILED} or {@code ERROR}. */
+    final String outcome;
+
+    TestReport(String file, String className, String name, double time, String outcome) {
+      this.file = file;
+      this.className = className;
+      this.name = name;
+      this.time = time;
+      this.outcome = outcome;
     }
   }
 
-  /** Build multi-release modules. */
-  class MultiReleaseBuilder extends DefaultBuilder {
+  /** SHA-256 message digest builder. */
+  static class Digest {
+    private final MessageDigest md;
 
-    private final Pattern javaReleasePattern = Pattern.compile("java-\\d+");
+    Digest() {
+      try {
+        this.md = MessageDigest.getInstance("SHA-256");
+      } catch (Exception e) {
+        throw new Error("SHA-256 not available", e);
+      }
+    }
 
-    MultiReleaseBuilder(Run run, Realm realm) {
-      super(run, realm);
+    /** Update digest with the string representation of the given value. */
+    Digest with(Object value) {
+      md.update(value.toString().getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      return this;
     }
 
-    @Override
-    public List<String> build(List<String> modules) {
-      var result = new ArrayList<String>();
-      for (var module : modules) {
-        if (build(module)) {
-          result.add(module);
+    /** Update digest with all string representations of the given values. */
+    Digest withEach(Iterable<?> values) {
+      values.forEach(this::with);
+      return this;
+    }
+
+    /** Update digest with the contents of the given file. */
+    Digest withFile(Path file) {
+      try (var stream = Files.newInputStream(file)) {
+        var buffer = new byte[8192];
+        for (int read; (read = stream.read(buffer)) != -1; ) {
+          md.update(buffer, 0, read);
         }
+      } catch (Exception e) {
+        throw new Error("Reading file failed: " + file, e);
       }
-      return result;
+      return this;
     }
 
-    private boolean build(String module) {
-      var names = Util.listDirectoryNames(moduleSourcePath.resolve(module));
-      if (names.isEmpty()) {
-        return false; // empty source path or just a sole "module-info.java" file...
-      }
-      if (!names.stream().allMatch(javaReleasePattern.asMatchPredicate())) {
-        return false;
+    /** Update digest with relative names and contents of all regular files below root. */
+    Digest withTree(Path root) {
+      return withTree(Tree.EMPTY, root);
+    }
+
+    /** Update digest with relative names and contents of all files below root listed by tree. */
+    Digest withTree(Tree tree, Path root) {
+      if (!tree.exists(root)) {
+        return with("<missing>");
       }
-      run.log(DEBUG, "Building multi-release module: %s", module);
-      int base = 8; // TODO Find declared low base number: "java-*"
-      for (var release = base; release <= Runtime.version().feature(); release++) {
-        compile(module, base, release);
+      var files = tree.listFiles(root, path -> true);
+      files.sort(null);
+      for (var file : files) {
+        with(root.relativize(file)).withFile(file);
       }
-      if (realm.compileOnly()) {
-        return true;
+      return this;
+    }
+
+    /** Update digest with relative names and contents of all jar files below each root. */
+    Digest withJars(Tree tree, List<Path> roots) {
+      for (var root : roots) {
+        if (!tree.exists(root)) {
+          with("<missing>");
+          continue;
+        }
+        var jars = tree.listFiles(root, path -> path.toString().endsWith(".jar"));
+        jars.sort(null);
+        jars.forEach(jar -> with(root.relativize(jar)).withFile(jar));
       }
+      return this;
+    }
+
+    /** Update digest with each given tree. */
+    Digest withTrees(Tree tree, List<Path> roots) {
+      roots.forEach(root -> withTree(tree, root));
+      return this;
+    }
+
+    /** Return hexadecimal representation of the digest computed so far. */
+    @Override
+    public String toString() {
       try {
-        jarModule(module, base);
-        jarSources(module, base);
-        // TODO Create "-javadoc.jar" for this multi-release module
-      } catch (Exception e) {
-        throw new Error("Building module " + module + " failed!", e);
+        var bytes = ((MessageDigest) md.clone()).digest();
+        var builder = new StringBuilder();
+        for (var b : bytes) {
+          builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+      } catch (CloneNotSupportedException e) {
+        throw new Error("Cloning message digest failed", e);
       }
-      return true;
     }
+  }
 
-    private void compile(String module, int base, int release) {
-      var moduleSourcePath = home.resolve(realm.source);
-      var javaR = "java-" + release;
-      var source = moduleSourcePath.resolve(module).resolve(javaR);
-      if (Files.notExists(source)) {
-        run.log(DEBUG, "Skipping %s, no source path exists: %s", javaR, source);
-        return;
-      }
-      var destination = realm.compiledMulti.resolve(javaR);
-      var javac =
-          new Args()
-              .with(false, "-verbose")
-              .with("-encoding", "UTF-8")
-              .with("-Xlint")
-              .with("--release", release);
-      if (release < 9) {
-        javac.with("-d", destination.resolve(module));
-        // TODO "-cp" ...
-        javac.withEach(Util.listJavaFiles(source)); // javac.with("**/*.java");
-      } else {
-        javac.with("-d", destination);
-        javac.with("--module-version", version);
-        javac.with("--module-path", realm.modulePaths.get("compile"));
-        var pathR = moduleSourcePath + File.separator + "*" + File.separator + javaR;
-        var sources = List.of(pathR, "" + moduleSourcePath);
-        javac.with("--module-source-path", String.join(File.pathSeparator, sources));
-        javac.with(
-            "--patch-module",
-            module + '=' + realm.compiledMulti.resolve("java-" + base).resolve(module));
-        javac.with("--module", module);
+  /** Persistent map of keys to digests recorded by a previous successful run. */
+  static class Fingerprints {
+    /** Load fingerprints from the given file, an absent file yields an empty store. */
+    static Fingerprints load(Path file) {
+      var properties = new Properties();
+      if (Files.isRegularFile(file)) {
+        try (var stream = Files.newInputStream(file)) {
+          properties.load(stream);
+        } catch (Exception e) {
+          properties.clear(); // corrupt store, start over
+        }
       }
-      run.tool("javac", javac.toStringArray());
+      return new Fingerprints(file, properties);
     }
 
-    private void jarModule(String module, int base) throws Exception {
-      Files.createDirectories(realm.packagedModules);
-      var file = realm.packagedModules.resolve(module + '-' + version + ".jar");
-      var source = realm.compiledMulti;
-      var javaBase = source.resolve("java-" + base).resolve(module);
-      var jar =
-          new Args()
-              .with(debug, "--verbose")
-              .with("--create")
-              .with("--file", file)
-              // "base" classes
-              .with("-C", javaBase)
-              .with(".");
-      // "base" + 1 .. N files
-      for (var release = base + 1; release <= Runtime.version().feature(); release++) {
-        var javaRelease = source.resolve("java-" + release).resolve(module);
-        if (Files.notExists(javaRelease)) {
-          continue;
+    final Path file;
+    private final Properties properties;
+    /** Digests recorded by this instance, merged into the backing file on store. */
+    private final Properties changes = new Properties();
+
+    Fingerprints(Path file, Properties properties) {
+      this.file = file;
+      this.properties = properties;
+    }
+
+    /** Return {@code true} if the recorded digest of the given key equals the given digest. */
+    synchronized boolean matches(String key, String digest) {
+      return digest.equals(properties.getProperty(key));
+    }
+
+    /** Record digest for the given key. */
+    synchronized void put(String key, String digest) {
+      properties.setProperty(key, digest);
+      changes.setProperty(key, digest);
+    }
+
+    /** Merge all digests recorded by this instance into the backing file. */
+    void store() {
+      var snapshot = new Properties();
+      synchronized (this) {
+        snapshot.putAll(changes);
+      }
+      synchronized (Fingerprints.class) { // other instances may share the backing file
+        try {
+          var merged = load(file).properties;
+          merged.putAll(snapshot);
+          Files.createDirectories(file.getParent());
+          try (var stream = Files.newOutputStream(file)) {
+            merged.store(stream, "Make.java fingerprints");
+          }
+        } catch (Exception e) {
+          throw new Error("Storing fingerprints failed: " + file, e);
         }
-        jar.with("--release", release);
-        jar.with("-C", javaRelease);
-        jar.with(".");
       }
-      run.tool("jar", jar.toStringArray());
     }
+  }
 
-    private void jarSources(String module, int base) throws Exception {
-      Files.createDirectories(realm.packagedSources);
-      var file = realm.packagedSources.resolve(module + '-' + version + "-sources.jar");
-      var source = home.resolve(realm.source).resolve(module);
-      var javaBase = source.resolve("java-" + base);
-      var jar =
-          new Args()
-              .with(debug, "--verbose")
-              .with("--create")
-              .with("--file", file)
-              // "base" classes
-              .with("-C", javaBase)
-              .with(".");
-      // "base" + 1 .. N files
-      for (var release = base + 1; release <= Runtime.version().feature(); release++) {
-        var javaRelease = source.resolve("java-" + release);
-        if (Files.notExists(javaRelease)) {
-          continue;
+  /** User-level content-addressed store of downloaded files, shared by all project checkouts. */
+  static class Store {
+    /** Create store rooted at {@code -Dmake.cache=...}, defaults to {@code ~/.cache/make-java}. */
+    static Store of() {
+      var userCache = Path.of(System.getProperty("user.home"), ".cache", "make-java");
+      return new Store(Path.of(System.getProperty("make.cache", userCache.toString())));
+    }
+
+    /** Root directory of the store. */
+    final Path root;
+
+    Store(Path root) {
+      this.root = root;
+    }
+
+    /** Return path of the file with the given SHA-256 content hash. */
+    Path blob(String sha256) {
+      return root.resolve("sha256").resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    /** Return path of the index entry describing the given uri. */
+    Path index(URI uri) {
+      return root.resolve("uri").resolve(new Digest().with(uri) + ".properties");
+    }
+
+    /** Link stored file of the given uri into the directory, unless the file already exists. */
+    void restore(URI uri, Path directory) throws Exception {
+      var index = index(uri);
+      if (Files.notExists(index)) {
+        return;
+      }
+      var entry = new Properties();
+      try (var stream = Files.newInputStream(index)) {
+        entry.load(stream);
+      }
+      var target = directory.resolve(entry.getProperty("file"));
+      var blob = blob(entry.getProperty("sha256"));
+      if (Files.exists(target) || Files.notExists(blob)) {
+        return;
+      }
+      Files.createDirectories(directory);
+      Util.link(blob, target);
+      var modified = Long.parseLong(entry.getProperty("modified"));
+      Files.setLastModifiedTime(target, FileTime.fromMillis(modified));
+      var etag = entry.getProperty("etag");
+      if (etag != null) {
+        Files.writeString(target.resolveSibling(target.getFileName() + ".etag"), etag);
+      }
+    }
+
+    /** Add the given file downloaded from the uri to this store and return the file. */
+    Path put(URI uri, Path file) throws Exception {
+      var index = index(uri);
+      var size = Long.toString(Files.size(file));
+      var modified = Long.toString(Files.getLastModifiedTime(file).toMillis());
+      var entry = new Properties();
+      if (Files.exists(index)) {
+        try (var stream = Files.newInputStream(index)) {
+          entry.load(stream);
+        }
+        if (size.equals(entry.getProperty("size"))
+            && modified.equals(entry.getProperty("modified"))
+            && file.getFileName().toString().equals(entry.getProperty("file"))
+            && Files.exists(blob(entry.getProperty("sha256")))) {
+          return file; // unchanged since last recorded
         }
-        jar.with("--release", release);
-        jar.with("-C", javaRelease);
-        jar.with(".");
       }
-      run.tool("jar", jar.toStringArray());
+      var sha256 = new Digest().withFile(file).toString();
+      var blob = blob(sha256);
+      if (Files.notExists(blob)) {
+        Files.createDirectories(blob.getParent());
+        var temporary = Files.createTempFile(blob.getParent(), sha256, ".part");
+        Files.copy(file, temporary, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temporary, blob, StandardCopyOption.REPLACE_EXISTING);
+      }
+      entry.setProperty("uri", uri.toString());
+      entry.setProperty("file", file.getFileName().toString());
+      entry.setProperty("sha256", sha256);
+      entry.setProperty("size", size);
+      entry.setProperty("modified", modified);
+      var etag = file.resolveSibling(file.getFileName() + ".etag");
+      if (Files.exists(etag)) {
+        entry.setProperty("etag", Files.readString(etag));
+      } else {
+        entry.remove("etag");
+      }
+      Files.createDirectories(index.getParent());
+      var temporary = Files.createTempFile(index.getParent(), "index", ".part");
+      try (var stream = Files.newOutputStream(temporary)) {
+        entry.store(stream, null);
+      }
+      Files.move(temporary, index, StandardCopyOption.REPLACE_EXISTING);
+      return file;
     }
   }
 
@@ -709,7 +3144,93 @@ class Make implements ToolProvider {
         }
         throw new IllegalStateException("Target is missing and being offline: " + target);
       }
-      var connection = url.openConnection();
+      var scheme = uri.getScheme();
+      if (!"http".equals(scheme) && !"https".equals(scheme)) {
+        return download(url.openConnection(), target);
+      }
+      var etag = target.resolveSibling(fileName + ".etag");
+      if (Files.exists(target) && Files.notExists(etag)) {
+        // logger.accept("No entity tag recorded, comparing last modified timestamps via HEAD...");
+        var head = HttpRequest.newBuilder(uri).method("HEAD", BodyPublishers.noBody()).build();
+        var response = Http.CLIENT.send(head, BodyHandlers.discarding());
+        if (response.statusCode() == 200) {
+          var headers = response.headers();
+          var lastModified = headers.firstValue("Last-Modified").map(Util::parseHttpDate);
+          if (lastModified.isPresent()
+              && lastModified.get().equals(Files.getLastModifiedTime(target))) {
+            var tag = headers.firstValue("ETag");
+            if (tag.isPresent()) {
+              Files.writeString(etag, tag.get());
+            }
+            return target;
+          }
+        }
+      }
+      var request = HttpRequest.newBuilder(uri).GET();
+      if (Files.exists(target)) {
+        var fileModified = Files.getLastModifiedTime(target).toInstant().atZone(ZoneOffset.UTC);
+        var ifModifiedSince = DateTimeFormatter.RFC_1123_DATE_TIME.format(fileModified);
+        request.header("If-Modified-Since", ifModifiedSince);
+        if (Files.exists(etag)) {
+          request.header("If-None-Match", Files.readString(etag).strip());
+        }
+      }
+      // created on a 200 response only, unchanged files don't cause any write below "folder"
+      var temporary = new Path[1];
+      try {
+        var response =
+            Http.CLIENT.send(
+                request.build(),
+                info -> {
+                  if (info.statusCode() != 200) {
+                    return BodySubscribers.replacing(folder); // body is not used
+                  }
+                  try {
+                    temporary[0] = Files.createTempFile(folder, fileName, ".part");
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                  return BodySubscribers.ofFile(temporary[0]);
+                });
+        var code = response.statusCode();
+        if (code == 304) {
+          // logger.accept(String.format("Already downloaded %s previously.", fileName));
+          return target;
+        }
+        if (code != 200) {
+          throw new IllegalStateException("Downloading " + uri + " failed with status " + code);
+        }
+        var headers = response.headers();
+        var contentDisposition = headers.firstValue("Content-Disposition").orElse("");
+        if (contentDisposition.indexOf('=') > 0) {
+          target = target.resolveSibling(contentDisposition.split("=")[1]);
+          etag = target.resolveSibling(target.getFileName() + ".etag");
+        }
+        // replace atomically, the old file may be linked from elsewhere
+        Files.move(temporary[0], target, StandardCopyOption.REPLACE_EXISTING);
+        var lastModified =
+            headers
+                .firstValue("Last-Modified")
+                .map(Util::parseHttpDate)
+                .orElse(FileTime.fromMillis(System.currentTimeMillis()));
+        Files.setLastModifiedTime(target, lastModified);
+        var tag = headers.firstValue("ETag");
+        if (tag.isPresent()) {
+          Files.writeString(etag, tag.get());
+        } else {
+          Files.deleteIfExists(etag);
+        }
+        // logger.accept(String.format("Downloaded %s successfully.", fileName));
+        return target;
+      } finally {
+        if (temporary[0] != null) {
+          Files.deleteIfExists(temporary[0]);
+        }
+      }
+    }
+
+    /** Download file using a plain url connection, used for non-http schemes. */
+    private static Path download(URLConnection connection, Path target) throws Exception {
       try (var sourceStream = connection.getInputStream()) {
         var millis = connection.getLastModified();
         var lastModified = FileTime.fromMillis(millis == 0 ? System.currentTimeMillis() : millis);
@@ -725,45 +3246,139 @@ class Make implements ToolProvider {
           // logger.accept("Local target file differs from remote source -- replacing it...");
         }
         // logger.accept("Transferring " + uri);
-        try (var targetStream = Files.newOutputStream(target)) {
+        var temporary = Files.createTempFile(target.getParent(), "download", ".part");
+        try (var targetStream = Files.newOutputStream(temporary)) {
           sourceStream.transferTo(targetStream);
         }
-        var contentDisposition = connection.getHeaderField("Content-Disposition");
-        if (contentDisposition != null && contentDisposition.indexOf('=') > 0) {
-          var newTarget = target.resolveSibling(contentDisposition.split("=")[1]);
-          Files.move(target, newTarget);
-          target = newTarget;
-        }
+        // replace atomically, the old file may be linked from elsewhere
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
         Files.setLastModifiedTime(target, lastModified);
-        // logger.accept(String.format(" o Remote   -> %s", uri));
-        // logger.accept(String.format(" o Target   -> %s", target.toUri()));
-        // logger.accept(String.format(" o Modified -> %s", lastModified));
-        // logger.accept(String.format(" o Size     -> %d bytes", Files.size(target)));
-        // logger.accept(String.format("Downloaded %s successfully.", fileName));
       }
       return target;
     }
 
+    /** Create a hard link to the source file, falling back to copying it. */
+    static void link(Path source, Path target) throws Exception {
+      try {
+        Files.createLink(target, source);
+      } catch (UnsupportedOperationException | IOException e) {
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    /** Parse RFC 1123 date-time value as used by HTTP headers. */
+    static FileTime parseHttpDate(String value) {
+      var instant = DateTimeFormatter.RFC_1123_DATE_TIME.parse(value, Instant::from);
+      return FileTime.from(instant);
+    }
+
+    /** Lazily created HTTP client, shared by all downloads to reuse connections. */
+    private static final class Http {
+      static final HttpClient CLIENT =
+          HttpClient.newBuilder()
+              .version(HttpClient.Version.HTTP_2)
+              .followRedirects(HttpClient.Redirect.NORMAL)
+              .build();
+    }
+
+    /** Return the given string as a quoted and escaped JSON string literal. */
+    static String json(String string) {
+      var builder = new StringBuilder("\"");
+      for (var c : string.toCharArray()) {
+        if (c == '"' || c == '\\') {
+          builder.append('\\').append(c);
+        } else if (c < 0x20) {
+          builder.append(String.format("\\u%04x", (int) c));
+        } else {
+          builder.append(c);
+        }
+      }
+      return builder.append('"').toString();
+    }
+
+    /** Wait for the given future to complete and rethrow the cause of its failure. */
+    static <T> T join(CompletableFuture<T> future) {
+      try {
+        return future.join();
+      } catch (CompletionException e) {
+        var cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw e;
+      }
+    }
+
+    /** Sort nodes of the given graph so that each node follows all of its dependencies. */
+    static List<String> sortTopologically(Map<String, Set<String>> graph) {
+      var sorted = new LinkedHashSet<String>();
+      var visiting = new LinkedHashSet<String>();
+      for (var node : new TreeSet<>(graph.keySet())) {
+        sortTopologically(graph, node, visiting, sorted);
+      }
+      return List.copyOf(sorted);
+    }
+
+    private static void sortTopologically(
+        Map<String, Set<String>> graph, String node, Set<String> visiting, Set<String> sorted) {
+      if (sorted.contains(node)) {
+        return;
+      }
+      if (!visiting.add(node)) {
+        throw new Error("Cyclic dependency detected: " + visiting + " -> " + node);
+      }
+      for (var dependency : graph.getOrDefault(node, Set.of())) {
+        sortTopologically(graph, dependency, visiting, sorted);
+      }
+      visiting.remove(node);
+      sorted.add(node);
+    }
+
+    /** Return path to the {@code java} launcher of the current runtime. */
+    static Path java() {
+      var program = ProcessHandle.current().info().command().map(Path::of).orElseThrow();
+      return program.resolveSibling("java");
+    }
+
     /** Extract last path element from the supplied uri. */
     static String extractFileName(URI uri) {
       var path = uri.getPath(); // strip query and fragment elements
       return path.substring(path.lastIndexOf('/') + 1);
     }
 
-    /** Find first subdirectory below the given home path. */
-    static Optional<Path> findFirstDirectory(Path home, String... paths) {
-      return Arrays.stream(paths).map(home::resolve).filter(Files::isDirectory).findFirst();
+    /** Delete the given file or directory including all of its contents, if it exists. */
+    static void deleteTree(Path root) throws IOException {
+      if (Files.notExists(root)) {
+        return;
+      }
+      try (var stream = Files.walk(root)) {
+        for (var path : stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+          Files.delete(path);
+        }
+      }
     }
 
-    /** Test supplied path for pointing to a regular Java source compilation unit file. */
-    static boolean isJavaFile(Path path) {
-      if (Files.isRegularFile(path)) {
-        var name = path.getFileName().toString();
-        if (name.endsWith(".java")) {
-          return name.indexOf('.') == name.length() - 5; // single dot in filename
+    /** Copy the given file or directory including all of its contents, keeping attributes. */
+    static void copyTree(Path source, Path target) throws IOException {
+      try (var stream = Files.walk(source)) {
+        for (var path : stream.collect(Collectors.toList())) {
+          var destination = target.resolve(source.relativize(path).toString());
+          if (Files.isDirectory(path)) {
+            Files.createDirectories(destination);
+            continue;
+          }
+          Files.createDirectories(destination.getParent());
+          Files.copy(path, destination, StandardCopyOption.COPY_ATTRIBUTES);
         }
       }
-      return false;
+    }
+
+    /** Return predicate matching paths by their file name. */
+    static Predicate<Path> named(String name) {
+      return path -> path.getFileName().toString().equals(name);
     }
 
     /** Test supplied path for pointing to a regular Java archive file. */
@@ -809,10 +3424,5 @@ class Make implements ToolProvider {
     static List<Path> listFiles(Path root, Predicate<String> name) {
       return listFiles(List.of(root), path -> name.test(path.getFileName().toString()));
     }
-
-    /** List all regular Java files in given root directory. */
-    static List<Path> listJavaFiles(Path root) {
-      return listFiles(List.of(root), Util::isJavaFile);
-    }
   }
 }
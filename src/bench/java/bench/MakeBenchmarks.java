@@ -0,0 +1,123 @@
+package bench;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks of Make.java hot paths, its classes are accessed via method handles. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MakeBenchmarks {
+
+  static final MethodHandle LIST_FILES =
+      method("Make$Util", "listFiles", Path.class, Predicate.class);
+  static final MethodHandle LIST_DIRECTORY_NAMES =
+      method("Make$Util", "listDirectoryNames", Path.class);
+  static final MethodHandle NEW_ARGS = constructor("Make$Args");
+  static final MethodHandle ARGS_WITH = method("Make$Args", "with", Object.class, List.class);
+  static final MethodHandle NEW_RUN =
+      constructor("Make$Run", System.Logger.Level.class, PrintWriter.class, PrintWriter.class);
+  static final MethodHandle RUN_LOG =
+      method("Make$Run", "log", System.Logger.Level.class, String.class, Object[].class);
+
+  /** Find declared method of a Make.java class and make it accessible. */
+  static MethodHandle method(String className, String name, Class<?>... types) {
+    try {
+      var method = Class.forName(className).getDeclaredMethod(name, types);
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method);
+    } catch (ReflectiveOperationException e) {
+      throw new Error("Method " + className + "." + name + " not found", e);
+    }
+  }
+
+  /** Find declared constructor of a Make.java class and make it accessible. */
+  static MethodHandle constructor(String className, Class<?>... types) {
+    try {
+      var constructor = Class.forName(className).getDeclaredConstructor(types);
+      constructor.setAccessible(true);
+      return MethodHandles.lookup().unreflectConstructor(constructor);
+    } catch (ReflectiveOperationException e) {
+      throw new Error("Constructor of " + className + " not found", e);
+    }
+  }
+
+  Path root;
+  List<Path> paths;
+  Object run;
+
+  @Setup(Level.Trial)
+  public void setup() throws Throwable {
+    root = Files.createTempDirectory("make-bench-");
+    paths = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      var directory = Files.createDirectories(root.resolve("module" + i).resolve("pkg"));
+      paths.add(directory);
+      for (int j = 0; j < 50; j++) {
+        Files.createFile(directory.resolve("Type" + j + (j % 5 == 0 ? ".txt" : ".java")));
+      }
+    }
+    var writer = new PrintWriter(Writer.nullWriter());
+    run = NEW_RUN.invoke(System.Logger.Level.INFO, writer, writer);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    try (var stream = Files.walk(root)) {
+      for (var path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public Object listFiles() throws Throwable {
+    Predicate<String> filter = name -> name.endsWith(".java");
+    return LIST_FILES.invoke(root, filter);
+  }
+
+  @Benchmark
+  public Object listDirectoryNames() throws Throwable {
+    return LIST_DIRECTORY_NAMES.invoke(root);
+  }
+
+  @Benchmark
+  public Object argsWithPaths() throws Throwable {
+    var args = NEW_ARGS.invoke();
+    return ARGS_WITH.invoke(args, "--module-path", paths);
+  }
+
+  @Benchmark
+  public void logSuppressed() throws Throwable {
+    RUN_LOG.invoke(run, System.Logger.Level.DEBUG, "Suppressed %s and %d", "message", 123);
+  }
+
+  @Benchmark
+  public void logWritten() throws Throwable {
+    RUN_LOG.invoke(run, System.Logger.Level.INFO, "Written %s and %d", "message", 123);
+  }
+}